@@ -0,0 +1,66 @@
+package com.razzymcsnazzy.exoticsimagescraper;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of building a genus' species and synonyms off a saved World
+ *   Spider Catalog page, with and without parsing it first.
+ *   Run with -prof gc (as the benchmarks profile does) for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WSCGenusPageBenchmark {
+  private static final String BASE_URI = "https://wsc.nmbe.ch/";
+
+  private String genusHtml;
+  private Document genusPage;
+
+  @Setup
+  public void loadFixture() throws IOException {
+    try (InputStream in = WSCGenusPageBenchmark.class.getResourceAsStream("/fixtures/wsc-genus-page.html")) {
+      if (in == null) throw new IOException("No fixture wsc-genus-page.html");
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+      genusHtml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+    genusPage = Jsoup.parse(genusHtml, BASE_URI);
+    if (WSCApi.getSpeciesWithSynonymsInGenus(genusPage).size() != 23) {
+      throw new IllegalStateException("Fixture doesn't match what the extraction expects");
+    }
+  }
+
+  @Benchmark
+  public Map<String, Set<String>> genusPage() {
+    return WSCApi.getSpeciesWithSynonymsInGenus(Jsoup.parse(genusHtml, BASE_URI));
+  }
+
+  @Benchmark
+  public Map<String, Set<String>> extractionOnly() {
+    return WSCApi.getSpeciesWithSynonymsInGenus(genusPage);
+  }
+}
@@ -0,0 +1,139 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of extracting thumbnails, next page links, tags and images off
+ *   saved Arachnoboards pages, with and without parsing them first, and by
+ *   scanning their bytes the way the crawl reads them.
+ *   Run with -prof gc (as the benchmarks profile does) for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ABPagesBenchmark {
+  private static final String BASE_URI = "http://arachnoboards.com/";
+
+  private String listingHtml;
+  private String lastListingHtml;
+  private String galleryHtml;
+  private Document listingPage;
+  private Document galleryPage;
+  private byte[] listingBytes;
+  private byte[] lastListingBytes;
+  private byte[] galleryBytes;
+
+  @Setup
+  public void loadFixtures() throws IOException {
+    listingHtml = fixture("ab-tag-page.html");
+    lastListingHtml = fixture("ab-tag-page-last.html");
+    galleryHtml = fixture("ab-gallery-page.html");
+    listingPage = Jsoup.parse(listingHtml, BASE_URI);
+    galleryPage = Jsoup.parse(galleryHtml, BASE_URI);
+    if (ABPages.thumbnailHrefs(listingPage).size() != 20 || ABPages.nextPagePath(listingPage) == null
+      || ABPages.nextPagePath(Jsoup.parse(lastListingHtml, BASE_URI)) != null
+      || !ABPages.imagePath(galleryPage).endsWith("/full")) {
+      throw new IllegalStateException("Fixtures don't match what the extraction expects");
+    }
+
+    listingBytes = listingHtml.getBytes(StandardCharsets.UTF_8);
+    lastListingBytes = lastListingHtml.getBytes(StandardCharsets.UTF_8);
+    galleryBytes = galleryHtml.getBytes(StandardCharsets.UTF_8);
+    final ABPages.Listing listing = ABPages.readListing(new ByteArrayInputStream(listingBytes), "UTF-8", BASE_URI);
+    final ABPages.Listing lastListing = ABPages.readListing(new ByteArrayInputStream(lastListingBytes), "UTF-8", BASE_URI);
+    final ABPages.Gallery gallery = ABPages.readGallery(new ByteArrayInputStream(galleryBytes), "UTF-8", BASE_URI);
+    if (!listing.thumbnailHrefs.equals(ABPages.thumbnailHrefs(listingPage))
+      || !listing.nextPagePath.equals(ABPages.nextPagePath(listingPage)) || lastListing.nextPagePath != null
+      || !gallery.tagHrefs.equals(ABPages.tagHrefs(galleryPage)) || !gallery.imagePath.equals(ABPages.imagePath(galleryPage))) {
+      throw new IllegalStateException("Scanning the fixtures doesn't find what parsing them does");
+    }
+  }
+
+  @Benchmark
+  public void listingPage(final Blackhole blackhole) {
+    final Document page = Jsoup.parse(listingHtml, BASE_URI);
+    blackhole.consume(ABPages.thumbnailHrefs(page));
+    blackhole.consume(ABPages.nextPagePath(page));
+  }
+
+  @Benchmark
+  public String lastListingPageNext() {
+    return ABPages.nextPagePath(Jsoup.parse(lastListingHtml, BASE_URI));
+  }
+
+  @Benchmark
+  public void galleryPage(final Blackhole blackhole) {
+    final Document page = Jsoup.parse(galleryHtml, BASE_URI);
+    blackhole.consume(ABPages.tagHrefs(page));
+    blackhole.consume(ABPages.imagePath(page));
+  }
+
+  @Benchmark
+  public ABPages.Listing listingPageScanned() throws IOException {
+    return ABPages.readListing(new ByteArrayInputStream(listingBytes), "UTF-8", BASE_URI);
+  }
+
+  @Benchmark
+  public ABPages.Listing lastListingPageScanned() throws IOException {
+    return ABPages.readListing(new ByteArrayInputStream(lastListingBytes), "UTF-8", BASE_URI);
+  }
+
+  @Benchmark
+  public ABPages.Gallery galleryPageScanned() throws IOException {
+    return ABPages.readGallery(new ByteArrayInputStream(galleryBytes), "UTF-8", BASE_URI);
+  }
+
+  @Benchmark
+  public Object thumbnailsOnly() {
+    return ABPages.thumbnailHrefs(listingPage);
+  }
+
+  @Benchmark
+  public String nextPageOnly() {
+    return ABPages.nextPagePath(listingPage);
+  }
+
+  @Benchmark
+  public void galleryExtractionOnly(final Blackhole blackhole) {
+    blackhole.consume(ABPages.tagHrefs(galleryPage));
+    blackhole.consume(ABPages.imagePath(galleryPage));
+  }
+
+  /**
+   * @param name of a fixture page
+   * @return the page's html
+   * @throws IOException if the fixture is missing
+   */
+  static String fixture(final String name) throws IOException {
+    try (InputStream in = ABPagesBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+      if (in == null) throw new IOException("No fixture " + name);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
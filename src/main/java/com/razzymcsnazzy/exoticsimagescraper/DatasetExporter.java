@@ -0,0 +1,287 @@
+package com.razzymcsnazzy.exoticsimagescraper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class for exporting the scraped images as a training dataset of a few
+ *   large shard files, since the trainer reads millions of small files
+ *   slowly, especially off network filesystems.
+ *
+ * Each shard is a plain tar file (shard-00000.tar) of label/image entries,
+ *   next to an index (shard-00000.idx) with one line per image:
+ *   label, image name, byte offset of the image data in the tar and its
+ *   length. That lets the trainer read any image directly, in any order.
+ *
+ * Exports are incremental: images already in a shard index are skipped,
+ *   and new images are written to new shards. Shards are written in parallel.
+ */
+class DatasetExporter {
+
+  /**
+   * Max size of a shard, in bytes (-Dexport.shardBytes).
+   */
+  private static final long SHARD_BYTES = Long.getLong("export.shardBytes", 256L * 1024 * 1024);
+
+  /**
+   * Number of shards written at once (-Dexport.threads).
+   */
+  private static final int THREADS = Integer.getInteger("export.threads", Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Size of a tar block.
+   */
+  private static final int BLOCK = 512;
+
+  /**
+   * Seed for shuffling images across shards, so each shard holds a mix of labels.
+   */
+  private static final long SHUFFLE_SEED = 42;
+
+  private DatasetExporter() { }
+
+  /**
+   * An image to export.
+   */
+  private static class Image {
+    final String label;
+    final File file;
+
+    Image(final String label, final File file) {
+      this.label = label;
+      this.file = file;
+    }
+
+    String key() { return label + "/" + file.getName(); }
+  }
+
+  /**
+   * Export images that haven't been exported yet into new shards.
+   * @param exportDir to write shards to
+   * @param imageDirs to export (one subdirectory per label)
+   */
+  static void exportShards(final File exportDir, final File... imageDirs) {
+    try {
+      exportDir.mkdirs();
+      final Set<String> exported = readExported(exportDir);
+
+      // find new images
+      final List<Image> images = new ArrayList<>();
+      for (File imageDir : imageDirs) {
+        if (!imageDir.isDirectory()) continue;
+        for (File labelDir : Objects.requireNonNull(imageDir.listFiles())) {
+          final File[] files = labelDir.listFiles();
+          if (files == null) continue;
+          for (File file : files) {
+            final Image image = new Image(labelDir.getName(), file);
+            if (file.isFile() && !isPartial(file) && exported.add(image.key())) images.add(image);
+          }
+        }
+      }
+      if (images.isEmpty()) {
+        System.out.println("No new images to export to " + exportDir.getPath());
+        return;
+      }
+
+      // split into shards
+      Collections.shuffle(images, new Random(SHUFFLE_SEED));
+      final List<List<Image>> shards = new ArrayList<>();
+      List<Image> shard = new ArrayList<>();
+      long shardBytes = 0;
+      for (Image image : images) {
+        final long entryBytes = BLOCK + padded(image.file.length());
+        if (!shard.isEmpty() && shardBytes + entryBytes > SHARD_BYTES) {
+          shards.add(shard);
+          shard = new ArrayList<>();
+          shardBytes = 0;
+        }
+        shard.add(image);
+        shardBytes += entryBytes;
+      }
+      shards.add(shard);
+
+      // write shards
+      final int firstShard = nextShardNumber(exportDir);
+      final ExecutorService writers = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(THREADS, shards.size())),
+        new ThreadFactoryBuilder().setNameFormat("Export Thread %d").build());
+      try {
+        final List<Future<?>> written = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+          final String name = String.format("shard-%05d", firstShard + i);
+          final List<Image> shardImages = shards.get(i);
+          written.add(writers.submit(() -> { writeShard(exportDir, name, shardImages); return null; }));
+        }
+        for (Future<?> shardWritten : written) shardWritten.get();
+      } finally {
+        writers.shutdown();
+      }
+      System.out.println("Exported " + images.size() + " images into " + shards.size() + " shards in " + exportDir.getPath());
+    } catch (IOException | ExecutionException e) {
+      System.err.println("An unexpected error occurred exporting images to " + exportDir.getPath() + ": " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Write a shard and its index. Both are written to temp files first,
+   *   and the index is moved into place last, so a shard only counts as
+   *   exported once it is complete.
+   * @param exportDir to write the shard to
+   * @param name of the shard
+   * @param images to write
+   * @throws IOException if writing fails
+   */
+  private static void writeShard(final File exportDir, final String name, final List<Image> images) throws IOException {
+    final File tar = new File(exportDir, name + ".tar");
+    final File index = new File(exportDir, name + ".idx");
+    final File tarTmp = new File(exportDir, name + ".tar.tmp");
+    final File indexTmp = new File(exportDir, name + ".idx.tmp");
+
+    try (FileChannel out = FileChannel.open(tarTmp.toPath(),
+           StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         Writer indexOut = new OutputStreamWriter(new FileOutputStream(indexTmp), StandardCharsets.UTF_8)) {
+      for (Image image : images) {
+        try (FileChannel in = FileChannel.open(image.file.toPath(), StandardOpenOption.READ)) {
+          final long size = in.size();
+          writeFully(out, tarHeader(image.label, image.file.getName(), size, image.file.lastModified()));
+          final long offset = out.position();
+          long copied = 0;
+          while (copied < size) copied += in.transferTo(copied, size - copied, out);
+          writeFully(out, ByteBuffer.allocate((int) (padded(size) - size)));
+          indexOut.write(image.label + "\t" + image.file.getName() + "\t" + offset + "\t" + size + "\n");
+        }
+      }
+
+      // end of archive
+      writeFully(out, ByteBuffer.allocate(2 * BLOCK));
+      out.force(true);
+    }
+    Files.move(tarTmp.toPath(), tar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(indexTmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Make a ustar header for an image.
+   * @param label of the image, used as directory
+   * @param name of the image
+   * @param size of the image in bytes
+   * @param lastModified of the image, in millis
+   * @return the header
+   */
+  private static ByteBuffer tarHeader(final String label, final String name, final long size, final long lastModified) {
+    final byte[] header = new byte[BLOCK];
+    final String path = label + "/" + name;
+    if (path.getBytes(StandardCharsets.UTF_8).length <= 100) {
+      put(header, 0, 100, path);
+    } else {
+      put(header, 0, 100, name);
+      put(header, 345, 155, label);
+    }
+    put(header, 100, 8, "0000644");
+    put(header, 108, 8, "0000000");
+    put(header, 116, 8, "0000000");
+    put(header, 124, 12, String.format("%011o", size));
+    put(header, 136, 12, String.format("%011o", lastModified / 1000));
+    header[156] = '0';
+    put(header, 257, 6, "ustar");
+    put(header, 263, 2, "00");
+
+    // checksum is computed with the checksum field set to spaces
+    for (int i = 148; i < 156; i++) header[i] = ' ';
+    int checksum = 0;
+    for (byte b : header) checksum += b & 0xff;
+    put(header, 148, 8, String.format("%06o", checksum));
+    header[155] = ' ';
+    return ByteBuffer.wrap(header);
+  }
+
+  /**
+   * Put a string into a header field, truncating it if too long.
+   */
+  private static void put(final byte[] header, final int offset, final int length, final String value) {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+  }
+
+  /**
+   * @param size of an image
+   * @return the size rounded up to whole tar blocks
+   */
+  private static long padded(final long size) {
+    return (size + BLOCK - 1) / BLOCK * BLOCK;
+  }
+
+  /**
+   * Write a whole buffer to a channel.
+   */
+  private static void writeFully(final FileChannel out, final ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) out.write(buffer);
+  }
+
+  /**
+   * @param file in an image directory
+   * @return true if it's a download or normalized image still being written, or left behind by a crash
+   */
+  private static boolean isPartial(final File file) {
+    return file.getName().endsWith(".part") || file.getName().endsWith(".tmp");
+  }
+
+  /**
+   * Read which images are in the indices of existing shards.
+   * @param exportDir with the shards
+   * @return label/image keys of exported images
+   * @throws IOException if an index can't be read
+   */
+  private static Set<String> readExported(final File exportDir) throws IOException {
+    final Set<String> exported = new HashSet<>();
+    for (File index : Objects.requireNonNull(exportDir.listFiles((dir, name) -> name.endsWith(".idx")))) {
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          final String[] fields = line.split("\t");
+          if (fields.length == 4) exported.add(fields[0] + "/" + fields[1]);
+        }
+      }
+    }
+    return exported;
+  }
+
+  /**
+   * @param exportDir with the shards
+   * @return number of the next shard to write
+   */
+  private static int nextShardNumber(final File exportDir) {
+    int next = 0;
+    for (File index : Objects.requireNonNull(exportDir.listFiles((dir, name) -> name.matches("shard-\\d+\\.idx")))) {
+      next = Math.max(next, Integer.parseInt(index.getName().substring(6, index.getName().length() - 4)) + 1);
+    }
+    return next;
+  }
+}
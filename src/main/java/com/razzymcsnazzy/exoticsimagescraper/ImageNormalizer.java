@@ -0,0 +1,306 @@
+package com.razzymcsnazzy.exoticsimagescraper;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class for normalizing scraped images for training: decode, validate,
+ *   downscale to each target size and re-encode as JPEG, since images are
+ *   stored exactly as uploaded, at any resolution and in any format.
+ *
+ * Images are spread over a work-stealing pool. Since a decoded full size
+ *   photo easily takes 50 MB, the number of decoded images in memory at
+ *   once is capped by sizing the pool to it, so no worker sits blocked
+ *   waiting for memory, and large images are subsampled while decoding
+ *   rather than decoded at full size first.
+ *
+ * Output goes to [output]/[size]/[label]/[image].jpg. Images whose output
+ *   is newer than the image are skipped, so re-runs only do new images.
+ *   Images left out by the tag rules aren't normalized, and their output
+ *   from earlier runs is removed, so what's exported for training follows
+ *   the rules.
+ */
+class ImageNormalizer {
+
+  /**
+   * Target sizes of the longer side, in pixels (-Dnormalize.sizes=224,512).
+   */
+  static final int[] SIZES = parseSizes(System.getProperty("normalize.sizes", "224,512"));
+
+  /**
+   * JPEG quality to encode with (-Dnormalize.quality).
+   */
+  private static final float QUALITY = Float.parseFloat(System.getProperty("normalize.quality", "0.9"));
+
+  /**
+   * Number of threads (-Dnormalize.threads).
+   */
+  private static final int THREADS = Integer.getInteger("normalize.threads", Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Max number of decoded images in memory at once (-Dnormalize.maxDecoded).
+   *   Each thread holds one while it works, so no more threads than this are used.
+   */
+  private static final int MAX_DECODED = Integer.getInteger("normalize.maxDecoded", Math.max(1, THREADS / 2));
+
+  /**
+   * Number of images a task handles itself instead of splitting further.
+   */
+  private static final int BATCH = 16;
+
+  private ImageNormalizer() { }
+
+  /**
+   * Normalize all images that haven't been normalized yet.
+   * @param outputDir to write normalized images to
+   * @param excluded file names of images to leave out
+   * @param imageDirs to normalize (one subdirectory per label)
+   */
+  static void normalize(final File outputDir, final Set<String> excluded, final File... imageDirs) {
+    final List<File> images = new ArrayList<>();
+    int numRemoved = 0;
+    for (File imageDir : imageDirs) {
+      if (!imageDir.isDirectory()) continue;
+      for (File labelDir : Objects.requireNonNull(imageDir.listFiles())) {
+        final File[] files = labelDir.listFiles();
+        if (files == null) continue;
+        for (File file : files) {
+          if (!file.isFile() || file.getName().endsWith(".part")) continue;
+          if (excluded.contains(file.getName())) {
+            if (removeNormalized(outputDir, file)) numRemoved++;
+          } else if (!isNormalized(outputDir, file)) {
+            images.add(file);
+          }
+        }
+      }
+    }
+    System.out.println("Normalizing " + images.size() + " images to " + outputDir.getPath()
+      + (numRemoved > 0 ? ", removed " + numRemoved + " left out by the tag rules" : ""));
+
+    final Normalization normalization = new Normalization(outputDir, images, 0, images.size());
+    final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(THREADS, MAX_DECODED)));
+    try {
+      pool.invoke(normalization);
+    } finally {
+      pool.shutdown();
+    }
+    System.out.println("Normalized " + normalization.numDone.get() + " images, "
+      + normalization.numInvalid.get() + " could not be decoded");
+  }
+
+  /**
+   * Normalizes a range of images, splitting it in halves that idle threads can steal.
+   */
+  private static class Normalization extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final File outputDir;
+    private final List<File> images;
+    private final int from;
+    private final int to;
+    private final AtomicInteger numDone;
+    private final AtomicInteger numInvalid;
+
+    Normalization(final File outputDir, final List<File> images, final int from, final int to) {
+      this(outputDir, images, from, to, new AtomicInteger(), new AtomicInteger());
+    }
+
+    private Normalization(final File outputDir, final List<File> images, final int from, final int to,
+                          final AtomicInteger numDone, final AtomicInteger numInvalid) {
+      this.outputDir = outputDir;
+      this.images = images;
+      this.from = from;
+      this.to = to;
+      this.numDone = numDone;
+      this.numInvalid = numInvalid;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > BATCH) {
+        final int middle = (from + to) >>> 1;
+        invokeAll(
+          new Normalization(outputDir, images, from, middle, numDone, numInvalid),
+          new Normalization(outputDir, images, middle, to, numDone, numInvalid));
+        return;
+      }
+
+      for (int i = from; i < to; i++) {
+        final File image = images.get(i);
+        try {
+          if (normalizeImage(outputDir, image)) numDone.incrementAndGet();
+          else numInvalid.incrementAndGet();
+        } catch (IOException e) {
+          numInvalid.incrementAndGet();
+          System.err.println("Error normalizing " + image.getPath() + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode an image, and write it at each target size.
+   * @param outputDir to write normalized images to
+   * @param image to normalize
+   * @return false if the image can't be decoded
+   * @throws IOException if writing fails
+   */
+  private static boolean normalizeImage(final File outputDir, final File image) throws IOException {
+    final BufferedImage decoded = decode(image, SIZES[SIZES.length - 1]);
+    if (decoded == null || decoded.getWidth() == 0 || decoded.getHeight() == 0) return false;
+
+    for (int size : SIZES) {
+      final File target = outputFile(outputDir, size, image);
+      target.getParentFile().mkdirs();
+      final File tmp = new File(target.getPath() + ".tmp");
+      try {
+        encode(scaled(decoded, size), tmp);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decode an image, subsampling it while decoding if it's much larger than needed.
+   * @param image to decode
+   * @param largestSize the image will be scaled to
+   * @return the decoded image, or null if it's not a readable image
+   * @throws IOException if reading fails
+   */
+  private static BufferedImage decode(final File image, final int largestSize) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
+      if (in == null) return null;
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) return null;
+
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        final int longerSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final int subsampling = Math.max(1, longerSide / (2 * largestSize));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } catch (IOException | RuntimeException e) {
+        return null;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Scale an image down so its longer side fits a size. Smaller images
+   *   aren't scaled up. Transparency is dropped, since JPEG can't store it.
+   * @param image to scale
+   * @param size of the longer side
+   * @return the scaled image
+   */
+  private static BufferedImage scaled(final BufferedImage image, final int size) {
+    final double scale = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+    final int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+    final int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+    final BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final Graphics2D graphics = scaled.createGraphics();
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    graphics.drawImage(image, 0, 0, width, height, null);
+    graphics.dispose();
+    return scaled;
+  }
+
+  /**
+   * Encode an image as JPEG.
+   * @param image to encode
+   * @param file to write to
+   * @throws IOException if writing fails
+   */
+  private static void encode(final BufferedImage image, final File file) throws IOException {
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(QUALITY);
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  /**
+   * @param outputDir normalized images are written to
+   * @param image to check
+   * @return true if the image has been normalized to all sizes since it last changed
+   */
+  private static boolean isNormalized(final File outputDir, final File image) {
+    for (int size : SIZES) {
+      final File target = outputFile(outputDir, size, image);
+      if (!target.exists() || target.lastModified() < image.lastModified()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remove the output of an image that's left out.
+   * @param outputDir normalized images are written to
+   * @param image left out
+   * @return true if there was output to remove
+   */
+  private static boolean removeNormalized(final File outputDir, final File image) {
+    boolean removed = false;
+    for (int size : SIZES) removed |= outputFile(outputDir, size, image).delete();
+    return removed;
+  }
+
+  /**
+   * @param outputDir normalized images are written to
+   * @param size of the normalized image
+   * @param image to normalize
+   * @return where the normalized image goes
+   */
+  private static File outputFile(final File outputDir, final int size, final File image) {
+    final String name = image.getName();
+    final int dot = name.lastIndexOf('.');
+    final String baseName = dot > 0 ? name.substring(0, dot) : name;
+    return new File(new File(new File(outputDir, Integer.toString(size)), image.getParentFile().getName()), baseName + ".jpg");
+  }
+
+  /**
+   * @param sizes comma separated
+   * @return the sizes, smallest first
+   */
+  private static int[] parseSizes(final String sizes) {
+    final String[] parts = sizes.split(",");
+    final int[] parsed = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) parsed[i] = Integer.parseInt(parts[i].trim());
+    Arrays.sort(parsed);
+    return parsed;
+  }
+}
@@ -1,11 +1,21 @@
 package com.razzymcsnazzy.exoticsimagescraper;
 
-import org.apache.commons.io.FileUtils;
+import com.razzymcsnazzy.exoticsimagescraper.scrapers.TagFilter;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Class for doing any processing on the scraped images that
@@ -16,25 +26,51 @@ class PostProcessor {
   private PostProcessor() { }
 
   /**
-   * Copy image dirs with a certain number of images into new dirs.
+   * Find the images left out of the dataset by their gallery tags, with
+   *   rules in images\view-rules.txt (-Dviews.rules, see TagFilter), e.g.
+   *   molts, enclosures or ventral shots. Tags are read from the image tags
+   *   the crawl kept, so changing the rules needs no network.
+   * @return file names of the images left out, none if there are no rules
+   * @throws IOException if the rules or image tags can't be read
+   */
+  static Set<String> excludedImages() throws IOException {
+    final String projectRoot = System.getProperty("user.dir");
+    final TagFilter rules = TagFilter.load(new File(System.getProperty("views.rules", projectRoot + "\\images\\view-rules.txt")));
+    if (rules == null) return Collections.emptySet();
+    return rules.excludedFiles(new File(projectRoot + "\\images\\image-tags"));
+  }
+
+  /**
+   * Make views of the labels with a certain number of images.
    * GCP's AutoML Vision requires at least 10 images per label, and
    *   works best with at least 100 images per label. Extracting the
    *   labels with a certain minimum of images allows us to easily
    *   create models trained on labels with the specified minimum of
    *   images (i.e. 10, 50, 100, 500, 1000, etc).
    *
-   * @param min number of images in labels to be copied
+   * Images in images\all and images\new are counted per label in a single
+   *   scan, and each view (images\min10, images\min100, ...) is filled with
+   *   hard links to them (symbolic links where hard links aren't supported),
+   *   so no image data is copied. Views are updated incrementally: only
+   *   links that are missing are made, and labels that dropped below a
+   *   minimum are removed from its view.
+   *
+   * Images the tag rules leave out (see excludedImages) aren't linked, and
+   *   links to them are removed, so rebuilding the views after changing the
+   *   rules needs no network (-Dviews.rebuild=true).
+   *
+   * @param excluded file names of images to leave out
+   * @param mins number of images in labels to make views for
    */
-  static void copyLabelsWithMinImages(final Integer min) {
+  static void materializeViews(final Set<String> excluded, final Integer... mins) {
     try {
-      System.out.println("Extracting species with at least " + min + " images");
+      System.out.println("Extracting species with at least " + join(mins) + " images");
 
       // get image root directory
       final String projectRoot = System.getProperty("user.dir");
       final File allImages = new File(projectRoot + "\\images\\all");
       final File newImages = new File(projectRoot + "\\images\\new");
 
-
       if (!allImages.exists() || Objects.requireNonNull(allImages.listFiles()).length == 0) {
         throw new IllegalArgumentException("There is no images\\all folder");
       }
@@ -42,22 +78,103 @@ class PostProcessor {
         throw new IllegalArgumentException("There is no images\\new folder");
       }
 
-      // copy image directory
-      final File subsetDir = new File(projectRoot + "\\images\\min" + min);
-      subsetDir.mkdir();
-      FileUtils.copyDirectory(allImages, subsetDir);
+      // count images per label
+      final Map<String, List<File>> imagesPerLabel = new TreeMap<>();
+      collectImages(allImages, imagesPerLabel, excluded);
+      collectImages(newImages, imagesPerLabel, excluded);
+
+      // link images of labels with enough images into each view
+      for (Integer min : mins) {
+        final File viewDir = new File(projectRoot + "\\images\\min" + min);
+        viewDir.mkdir();
+        int numLinked = 0;
+        int numUnlinked = 0;
+        int numLabels = 0;
+        for (Map.Entry<String, List<File>> label : imagesPerLabel.entrySet()) {
+          final File labelDir = new File(viewDir, label.getKey());
+          if (label.getValue().size() < min) {
+            if (labelDir.exists()) deleteView(labelDir);
+            continue;
+          }
+          numLabels++;
+          labelDir.mkdir();
+          final Set<String> names = new HashSet<>();
+          for (File image : label.getValue()) {
+            names.add(image.getName());
+            if (link(new File(labelDir, image.getName()).toPath(), image.toPath())) numLinked++;
+          }
 
-      // remove folders with less than minimum images
-      for (File dir : Objects.requireNonNull(subsetDir.listFiles())) {
-        if (Objects.requireNonNull(dir.listFiles()).length < min) {
-          for (File file : Objects.requireNonNull(dir.listFiles())) {
-            Files.delete(file.toPath());
+          // links to images that are gone or left out now
+          for (File link : Objects.requireNonNull(labelDir.listFiles())) {
+            if (names.contains(link.getName())) continue;
+            Files.delete(link.toPath());
+            numUnlinked++;
           }
-          Files.delete(dir.toPath());
         }
+        System.out.println("images\\min" + min + ": " + numLabels + " species, " + numLinked + " new images, "
+          + numUnlinked + " removed");
       }
     } catch (IOException e) {
-      System.err.println("An unexpected error occurred extracting species with a minimum of " + min + " images: " + e);
+      System.err.println("An unexpected error occurred extracting species with a minimum of " + join(mins) + " images: " + e);
+    }
+  }
+
+  /**
+   * Add the images in a directory of label directories to a map of images per label.
+   * @param imageDir to scan
+   * @param imagesPerLabel to add images to
+   * @param excluded file names of images to leave out
+   */
+  private static void collectImages(final File imageDir, final Map<String, List<File>> imagesPerLabel,
+                                    final Set<String> excluded) {
+    for (File labelDir : Objects.requireNonNull(imageDir.listFiles())) {
+      final File[] images = labelDir.listFiles();
+      if (images == null) continue;
+      final List<File> labelImages = imagesPerLabel.computeIfAbsent(labelDir.getName(), label -> new ArrayList<>());
+      for (File image : images) {
+        if (image.isFile() && !image.getName().endsWith(".part") && !excluded.contains(image.getName())) labelImages.add(image);
+      }
     }
   }
+
+  /**
+   * Link an image into a view, unless it's already there.
+   * @param link to make
+   * @param image to link to
+   * @return true if a link was made
+   * @throws IOException if neither a hard nor a symbolic link can be made
+   */
+  private static boolean link(final Path link, final Path image) throws IOException {
+    if (Files.exists(link, LinkOption.NOFOLLOW_LINKS)) return false;
+    try {
+      Files.createLink(link, image);
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.createSymbolicLink(link, image.toAbsolutePath());
+    }
+    return true;
+  }
+
+  /**
+   * Remove a label from a view. Only deletes links, never the images themselves.
+   * @param labelDir to remove
+   * @throws IOException if deleting fails
+   */
+  private static void deleteView(final File labelDir) throws IOException {
+    for (File link : Objects.requireNonNull(labelDir.listFiles())) {
+      Files.delete(link.toPath());
+    }
+    Files.delete(labelDir.toPath());
+  }
+
+  /**
+   * @param mins to join
+   * @return the mins, comma separated
+   */
+  private static String join(final Integer[] mins) {
+    final StringBuilder joined = new StringBuilder();
+    for (Integer min : mins) joined.append(joined.length() == 0 ? "" : ", ").append(min);
+    return joined.toString();
+  }
 }
@@ -1,9 +1,14 @@
 package com.razzymcsnazzy.exoticsimagescraper;
 
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+import com.razzymcsnazzy.exoticsimagescraper.scrapers.ImageValidator;
 import com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster;
+import com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeResult;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -12,30 +17,72 @@ import java.util.TreeMap;
  *  TODO
  *    - more sources
  *    - download new images to separate folder
- *    - do not scrape synonym if its equal to an accepted species name
  *    - how to deal with B hamorii vs. B smithi (many images mislabeled)?
  *    - is there a good way to differentiate by gender?
  */
 public class Runner {
   public static void main(final String[] args) {
+
+    // after changing the view rules, rebuild the views off what was scraped, without going online
+    if (Boolean.getBoolean("views.rebuild")) {
+      try {
+        PostProcessor.materializeViews(PostProcessor.excludedImages(), 10, 100);
+      } catch (Exception e) {
+        System.err.println("An unexpected error occurred: " + e.getMessage());
+      }
+      return;
+    }
+
     try {
 
-      // get species with synonyms from world spider catalog
-      final WSCApi wscApi = new WSCApi();
-      final TreeMap<String, List<String>> allSpeciesWithSynonyms = wscApi.getAllSpeciesWihSynonyms();
+      // get species with synonyms from the taxonomy snapshot, or the world spider catalog if it's stale
+      final Taxonomy taxonomy = Taxonomy.loadOrRefresh(
+        new File(System.getProperty("user.dir") + "\\cache\\taxonomy.snapshot"),
+        () -> new WSCApi().getAllSpeciesWihSynonyms());
+      final TreeMap<String, List<String>> allSpeciesWithSynonyms = taxonomy.speciesWithSynonyms();
 
       // create image directories
       PreProcessor.makeSpeciesDirectories(new ArrayList<>(allSpeciesWithSynonyms.keySet()));
 
       // scrape images off arachnoboards tags
-      new ScrapeMaster(allSpeciesWithSynonyms).scrapeABTags();
+      final ScrapeResult result = new ScrapeMaster(allSpeciesWithSynonyms, taxonomy).scrapeABTags();
+      if (!result.finishesDataset()) {
+        System.out.println("Leaving post processing to the node that merged the shards");
+        return;
+      }
+      if (!result.isDatasetComplete()) {
+        System.out.println("Leaving post processing until a run gets the " + result.getNumIncomplete() + " species with failures complete");
+        return;
+      }
 
-      // extract images in directories with a minimum of images
-      PostProcessor.copyLabelsWithMinImages(10);
-      PostProcessor.copyLabelsWithMinImages(100);
+      // move corrupt, cut off and tiny images out of the dataset, reading only their headers
+      final String imageRoot = System.getProperty("user.dir") + "\\images";
+      ImageValidator.validateAll(
+        new File(imageRoot + "\\quarantine"),
+        new File(imageRoot + "\\all"),
+        new File(imageRoot + "\\new"));
+
+      // extract images in directories with a minimum of images, leaving out those the tag rules exclude
+      final Set<String> excluded = PostProcessor.excludedImages();
+      PostProcessor.materializeViews(excluded, 10, 100);
+
+      // downscale images and pack them into shards for training, again without those the tag rules exclude
+      ImageNormalizer.normalize(
+        new File(imageRoot + "\\normalized"),
+        excluded,
+        new File(imageRoot + "\\all"),
+        new File(imageRoot + "\\new"));
+      for (int size : ImageNormalizer.SIZES) {
+        DatasetExporter.exportShards(
+          new File(imageRoot + "\\shards\\" + size),
+          new File(imageRoot + "\\normalized\\" + size));
+      }
     }
     catch (Exception e) {
       System.err.println("An unexpected error occurred: " + e.getMessage());
     }
+    finally {
+      ScraperMetrics.get().writeSummary(ScrapeMaster.metricsFile());
+    }
   }
 }
@@ -0,0 +1,344 @@
+package com.razzymcsnazzy.exoticsimagescraper;
+
+import com.razzymcsnazzy.exoticsimagescraper.scrapers.SpeciesLabels;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tarantula species with their synonyms, as a compact binary snapshot of
+ *   the World Spider Catalog that's memory-mapped instead of scraped again.
+ *
+ * Every name (accepted or synonym) is stored once, as UTF-8, in a blob
+ *   sorted the way Arachnoboards tags them (lower case, dashes for spaces),
+ *   so resolving a tag to its label is a binary search over the mapped file
+ *   that decodes only the label found. Next to the blob are int tables: each
+ *   name's label, and each label's synonyms. The crawl lists every species
+ *   off speciesWithSynonyms() once, and resolves every tag it meets through
+ *   the index.
+ *
+ *   magic, version, created at, #names, #labels, #synonym references
+ *   name offsets into the blob [#names + 1]
+ *   label of each name [#names]
+ *   name of each label [#labels]
+ *   offsets into the synonym references [#labels + 1]
+ *   synonym references [#synonym references]
+ *   blob
+ *
+ * The snapshot is written after every refresh from the catalog, and a run
+ *   only goes back to the catalog once it's older than -Dtaxonomy.maxAgeDays
+ *   (30), or when forced with -Dtaxonomy.refresh=true. A snapshot due for a
+ *   refresh is read onto the heap instead of mapped, since a mapped file
+ *   can't be replaced on Windows.
+ */
+public final class Taxonomy implements SpeciesLabels {
+
+  private static final int MAGIC = 0x5441584f;
+  private static final int VERSION = 2;
+  private static final int HEADER = 4 + 4 + 8 + 4 + 4 + 4;
+
+  /**
+   * Age after which the snapshot is refreshed from the catalog.
+   */
+  private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(Long.getLong("taxonomy.maxAgeDays", 30L));
+
+  /**
+   * Whether to refresh from the catalog no matter the snapshot's age.
+   */
+  private static final boolean FORCE_REFRESH = Boolean.getBoolean("taxonomy.refresh");
+
+  /**
+   * Where the taxonomy comes from when the snapshot is missing or stale.
+   */
+  interface Source {
+    TreeMap<String, List<String>> get() throws IOException;
+  }
+
+  private final ByteBuffer snapshot;
+  private final long createdAt;
+  private final int numNames;
+  private final int numLabels;
+  private final int nameOffsets;
+  private final int labelOfName;
+  private final int nameOfLabel;
+  private final int synonymOffsets;
+  private final int synonyms;
+  private final int blob;
+
+  private Taxonomy(final ByteBuffer snapshot) throws IOException {
+    if (snapshot.capacity() < HEADER || snapshot.getInt(0) != MAGIC || snapshot.getInt(4) != VERSION) {
+      throw new IOException("Not a taxonomy snapshot");
+    }
+    this.snapshot = snapshot;
+    this.createdAt = snapshot.getLong(8);
+    this.numNames = snapshot.getInt(16);
+    this.numLabels = snapshot.getInt(20);
+    final int numSynonyms = snapshot.getInt(24);
+    this.nameOffsets = HEADER;
+    this.labelOfName = nameOffsets + 4 * (numNames + 1);
+    this.nameOfLabel = labelOfName + 4 * numNames;
+    this.synonymOffsets = nameOfLabel + 4 * numLabels;
+    this.synonyms = synonymOffsets + 4 * (numLabels + 1);
+    this.blob = synonyms + 4 * numSynonyms;
+    if (blob + snapshot.getInt(nameOffsets + 4 * numNames) != snapshot.capacity()) {
+      throw new IOException("Truncated taxonomy snapshot");
+    }
+  }
+
+  /**
+   * Load the taxonomy from its snapshot, refreshing it from the source first
+   *   if the snapshot is missing, unreadable or stale. If the refresh fails,
+   *   a stale snapshot is still better than nothing.
+   * @param snapshotFile to load from and write to
+   * @param source to refresh from
+   * @return the taxonomy
+   * @throws IOException if there's neither a snapshot nor a source to be had
+   */
+  static Taxonomy loadOrRefresh(final File snapshotFile, final Source source) throws IOException {
+    Taxonomy taxonomy = null;
+    if (snapshotFile.exists()) {
+      final long start = System.nanoTime();
+      try {
+        taxonomy = isFresh(snapshotFile) ? map(snapshotFile) : read(snapshotFile);
+        System.out.println("Loaded " + taxonomy.getNumLabels() + " species (" + taxonomy.getNumNames() + " names) from taxonomy snapshot of "
+          + new Date(taxonomy.getCreatedAt()) + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+      } catch (IOException e) {
+        System.err.println("Ignoring unreadable taxonomy snapshot " + snapshotFile.getPath() + ": " + e.getMessage());
+      }
+    }
+    if (taxonomy != null && !FORCE_REFRESH && System.currentTimeMillis() - taxonomy.getCreatedAt() < MAX_AGE_MILLIS) {
+      return taxonomy;
+    }
+
+    try {
+      final TreeMap<String, List<String>> speciesWithSynonyms = source.get();
+      write(snapshotFile, speciesWithSynonyms);
+      return map(snapshotFile);
+    } catch (IOException e) {
+      if (taxonomy == null) throw e;
+      System.err.println("Could not refresh taxonomy, using snapshot of " + new Date(taxonomy.getCreatedAt()) + ": " + e.getMessage());
+      return taxonomy;
+    }
+  }
+
+  /**
+   * @param snapshotFile to check
+   * @return true if the snapshot is recent enough not to be refreshed
+   * @throws IOException if the snapshot can't be read
+   */
+  private static boolean isFresh(final File snapshotFile) throws IOException {
+    if (FORCE_REFRESH) return false;
+    try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // read on until the header is complete, or the file ends
+      }
+      return !header.hasRemaining() && System.currentTimeMillis() - header.getLong(8) < MAX_AGE_MILLIS;
+    }
+  }
+
+  /**
+   * Read a snapshot onto the heap, leaving the file free to be replaced.
+   * @param snapshotFile to read
+   * @return the taxonomy
+   * @throws IOException if the snapshot can't be read
+   */
+  static Taxonomy read(final File snapshotFile) throws IOException {
+    return new Taxonomy(ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath())));
+  }
+
+  /**
+   * Memory-map a snapshot.
+   * @param snapshotFile to map
+   * @return the taxonomy
+   * @throws IOException if the snapshot can't be read
+   */
+  static Taxonomy map(final File snapshotFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+      return new Taxonomy(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Write a snapshot.
+   * @param snapshotFile to write
+   * @param speciesWithSynonyms species mapped to their synonyms
+   * @throws IOException if writing fails
+   */
+  static void write(final File snapshotFile, final Map<String, List<String>> speciesWithSynonyms) throws IOException {
+
+    // intern every name once, sorted by tag
+    final Map<String, byte[]> utf8 = new HashMap<>();
+    for (Map.Entry<String, List<String>> species : speciesWithSynonyms.entrySet()) {
+      utf8.computeIfAbsent(species.getKey(), name -> name.getBytes(StandardCharsets.UTF_8));
+      for (String synonym : species.getValue()) utf8.computeIfAbsent(synonym, name -> name.getBytes(StandardCharsets.UTF_8));
+    }
+    final List<String> names = new ArrayList<>(utf8.keySet());
+    names.sort((a, b) -> compareTags(utf8.get(a), utf8.get(b)));
+    final Map<String, Integer> index = new HashMap<>();
+    for (int i = 0; i < names.size(); i++) index.put(names.get(i), i);
+
+    // labels, and the label of each name: its own if accepted, else the first species listing it
+    final int[] labelOf = new int[names.size()];
+    Arrays.fill(labelOf, -1);
+    final List<String> labels = new ArrayList<>(new TreeMap<>(speciesWithSynonyms).keySet());
+    for (int label = 0; label < labels.size(); label++) labelOf[index.get(labels.get(label))] = label;
+    int numSynonyms = 0;
+    for (int label = 0; label < labels.size(); label++) {
+      for (String synonym : speciesWithSynonyms.get(labels.get(label))) {
+        if (labelOf[index.get(synonym)] < 0) labelOf[index.get(synonym)] = label;
+        numSynonyms++;
+      }
+    }
+
+    // several nodes of a sharded crawl may refresh the snapshot at once, so each writes a file of its own
+    final File dir = snapshotFile.getAbsoluteFile().getParentFile();
+    dir.mkdirs();
+    final File tmp = Files.createTempFile(dir.toPath(), snapshotFile.getName(), ".tmp").toFile();
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(names.size());
+        out.writeInt(labels.size());
+        out.writeInt(numSynonyms);
+
+        int offset = 0;
+        for (String name : names) {
+          out.writeInt(offset);
+          offset += utf8.get(name).length;
+        }
+        out.writeInt(offset);
+        for (int label : labelOf) out.writeInt(label);
+        for (String label : labels) out.writeInt(index.get(label));
+        int synonymOffset = 0;
+        for (String label : labels) {
+          out.writeInt(synonymOffset);
+          synonymOffset += speciesWithSynonyms.get(label).size();
+        }
+        out.writeInt(synonymOffset);
+        for (String label : labels) {
+          for (String synonym : speciesWithSynonyms.get(label)) out.writeInt(index.get(synonym));
+        }
+        for (String name : names) out.write(utf8.get(name));
+      }
+      Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+
+      // gone if it was moved, else left over from a failed write or move
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  /**
+   * Get the label to file images of a tag under.
+   * @param tag of an accepted name or synonym, i.e. brachypelma-smithi
+   * @return the accepted name, or null if the tag names no known species
+   */
+  @Override
+  public String labelOfTag(final String tag) {
+    final byte[] key = tag.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = numNames - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int compared = compareName(middle, key);
+      if (compared < 0) low = middle + 1;
+      else if (compared > 0) high = middle - 1;
+      else return nameAt(snapshot.getInt(nameOfLabel + 4 * snapshot.getInt(labelOfName + 4 * middle)));
+    }
+    return null;
+  }
+
+  /**
+   * @return species mapped to their synonyms, as scraped from the catalog
+   */
+  public TreeMap<String, List<String>> speciesWithSynonyms() {
+    final TreeMap<String, List<String>> speciesWithSynonyms = new TreeMap<>();
+    for (int label = 0; label < numLabels; label++) {
+      final int from = snapshot.getInt(synonymOffsets + 4 * label);
+      final int to = snapshot.getInt(synonymOffsets + 4 * (label + 1));
+      final List<String> labelSynonyms = new ArrayList<>(to - from);
+      for (int i = from; i < to; i++) labelSynonyms.add(nameAt(snapshot.getInt(synonyms + 4 * i)));
+      speciesWithSynonyms.put(nameAt(snapshot.getInt(nameOfLabel + 4 * label)), labelSynonyms);
+    }
+    return speciesWithSynonyms;
+  }
+
+  /**
+   * @return when the snapshot was taken, in millis
+   */
+  public long getCreatedAt() { return createdAt; }
+
+  /**
+   * @return number of species
+   */
+  public int getNumLabels() { return numLabels; }
+
+  /**
+   * @return number of distinct names, accepted or synonym
+   */
+  public int getNumNames() { return numNames; }
+
+  /**
+   * Compare a name in the blob to a key, as tags.
+   */
+  private int compareName(final int name, final byte[] key) {
+    final int from = blob + snapshot.getInt(nameOffsets + 4 * name);
+    final int length = blob + snapshot.getInt(nameOffsets + 4 * (name + 1)) - from;
+    for (int i = 0; i < Math.min(length, key.length); i++) {
+      final int compared = tagByte(snapshot.get(from + i)) - tagByte(key[i]);
+      if (compared != 0) return compared;
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Compare two names as tags.
+   */
+  private static int compareTags(final byte[] a, final byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      final int compared = tagByte(a[i]) - tagByte(b[i]);
+      if (compared != 0) return compared;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * @return a byte of a name as it is in the name's tag: unsigned, with ASCII
+   *   upper case folded to lower case and spaces to dashes
+   */
+  private static int tagByte(final byte b) {
+    if (b == ' ') return '-';
+    if (b >= 'A' && b <= 'Z') return b + ('a' - 'A');
+    return b & 0xff;
+  }
+
+  /**
+   * Decode a name from the blob.
+   */
+  private String nameAt(final int name) {
+    final int from = snapshot.getInt(nameOffsets + 4 * name);
+    final byte[] bytes = new byte[snapshot.getInt(nameOffsets + 4 * (name + 1)) - from];
+    for (int i = 0; i < bytes.length; i++) bytes[i] = snapshot.get(blob + from + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -1,15 +1,24 @@
 package com.razzymcsnazzy.exoticsimagescraper;
 
-import org.jsoup.Jsoup;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.razzymcsnazzy.exoticsimagescraper.http.PageCache;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class for scraping tarantula species and their scientific synonyms
@@ -19,22 +28,66 @@ import java.util.TreeMap;
  *   needed to make requests. See https://wsc.nmbe.ch/dataresources.
  */
 class WSCApi {
-  private static final String WSC_ROOT = "https://wsc.nmbe.ch";
+  /**
+   * Root URL of the catalog (-Dwsc.root, i.e. to use a ReplayServer instead).
+   */
+  private static final String WSC_ROOT = System.getProperty("wsc.root", "https://wsc.nmbe.ch");
   private static final String THERAPOSIDAE_GENERA_URL = "/genlist/100/Theraphosidae";
 
+  /**
+   * Cache of WSC pages, so an unchanged catalog isn't downloaded again on every run.
+   * Configured via -Dwsc.cache.dir, -Dwsc.cache.maxBytes, -Dwsc.cache.maxAgeHours
+   *   and -Dwsc.offline (only serve from cache).
+   */
+  private final PageCache cache = PageCache.configured("wsc", new File(System.getProperty("user.dir") + "\\cache\\wsc"));
+
+  /**
+   * Max number of genus pages fetched at once (-Dwsc.parallelism).
+   */
+  private static final int PARALLELISM = Integer.getInteger("wsc.parallelism", 8);
+
   /**
    * Map tarantula species to their synonyms.
+   * Genus pages are fetched concurrently, so this takes about as long as the
+   *   slowest page rather than all of them together.
    * @return the map
    * @throws IOException you're no good, duck
    */
   TreeMap<String, List<String>> getAllSpeciesWihSynonyms() throws IOException {
-    final TreeMap<String, List<String>> allSpeciesWithSynonyms = new TreeMap<>();
     final Map<String, String> genusToSpeciesUrl = getTarantulaGeneraWithSpeciesUrl();
-    for (Map.Entry genus : genusToSpeciesUrl.entrySet()) {
-      final Map<String, List<String>> speciesWithSynonyms = getSpeciesWithSynonymsInGenus(genus.getValue().toString());
-      allSpeciesWithSynonyms.putAll(speciesWithSynonyms);
+    final ExecutorService fetcher = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(PARALLELISM, genusToSpeciesUrl.size())),
+      new ThreadFactoryBuilder().setNameFormat("WSC Thread %d").setDaemon(true).build());
+
+    // merge species of all genera
+    final Map<String, Set<String>> speciesWithSynonyms = new HashMap<>();
+    try {
+      final List<Future<Map<String, Set<String>>>> genera = new ArrayList<>();
+      for (String url : genusToSpeciesUrl.values()) genera.add(fetcher.submit(() -> getSpeciesWithSynonymsInGenus(url)));
+      for (Future<Map<String, Set<String>>> genus : genera) speciesWithSynonyms.putAll(genus.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while getting species", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Error getting species", e.getCause());
+    } finally {
+      fetcher.shutdownNow();
+    }
+
+    // drop synonyms that are an accepted name in another genus
+    final TreeMap<String, List<String>> allSpeciesWithSynonyms = new TreeMap<>();
+    int numDropped = 0;
+    for (Map.Entry<String, Set<String>> species : speciesWithSynonyms.entrySet()) {
+      final List<String> synonyms = new ArrayList<>(species.getValue().size());
+      for (String synonym : species.getValue()) {
+        if (speciesWithSynonyms.containsKey(synonym)) numDropped++;
+        else synonyms.add(synonym);
+      }
+      allSpeciesWithSynonyms.put(species.getKey(), synonyms);
     }
-    System.out.println("Found " + allSpeciesWithSynonyms.size() + " tarantula species");
+    System.out.println("Found " + allSpeciesWithSynonyms.size() + " tarantula species (dropped "
+      + numDropped + " synonyms that are accepted names)");
     return allSpeciesWithSynonyms;
   }
 
@@ -45,7 +98,7 @@ class WSCApi {
    */
   private Map<String, String> getTarantulaGeneraWithSpeciesUrl() throws IOException {
     final Map<String, String> genusToLsid = new TreeMap<>();
-    final Document generaTablePage = Jsoup.connect(WSC_ROOT + THERAPOSIDAE_GENERA_URL).get();
+    final Document generaTablePage = cache.get(WSC_ROOT + THERAPOSIDAE_GENERA_URL);
     final Elements generaTableRows = generaTablePage.getElementsByTag("tr");
     for (int i = 1; i < generaTableRows.size(); i++) {
       final Element row = generaTableRows.get(i);
@@ -59,34 +112,40 @@ class WSCApi {
   /**
    * Get all species in a genus.
    * @param url to species list of a genus
-   * @return each species in the genus mapped to a list of its synonyms
+   * @return each species in the genus mapped to its synonyms
    * @throws IOException aww boo
    */
-  private Map<String, List<String>> getSpeciesWithSynonymsInGenus(final String url) throws IOException {
-    final Map<String, List<String>> speciesWithSynonyms = new TreeMap<>();
-    final Document genusCatalogPage = Jsoup.connect(WSC_ROOT + url).get();
+  private Map<String, Set<String>> getSpeciesWithSynonymsInGenus(final String url) throws IOException {
+    return getSpeciesWithSynonymsInGenus(cache.get(WSC_ROOT + url));
+  }
+
+  /**
+   * Get all species on a genus' catalog page.
+   * @param genusCatalogPage to extract species from
+   * @return each species in the genus mapped to its synonyms
+   */
+  static Map<String, Set<String>> getSpeciesWithSynonymsInGenus(final Document genusCatalogPage) {
+    final Map<String, Set<String>> speciesWithSynonyms = new HashMap<>();
     final Elements species = genusCatalogPage.getElementsByClass("speciesTitle");
 
     // get species
-    for (Element sp : species) {
-      final String speciesName = sp.getElementsByTag("i").first().html();
-      speciesWithSynonyms.put(speciesName, new ArrayList<>());
+    final String[] speciesNames = new String[species.size()];
+    for (int i = 0; i < species.size(); i++) {
+      speciesNames[i] = species.get(i).getElementsByTag("i").first().html();
+      speciesWithSynonyms.put(speciesNames[i], new LinkedHashSet<>());
     }
 
     // get synonyms
-    for (Element sp : species) {
-      final Elements synonymsContainer = sp.nextElementSibling().getElementsByTag("i");
-      for (Element synonym : synonymsContainer) {
-        final String speciesName = sp.getElementsByTag("i").first().html();
+    for (int i = 0; i < species.size(); i++) {
+      final Set<String> synonyms = speciesWithSynonyms.get(speciesNames[i]);
+      for (Element synonym : species.get(i).nextElementSibling().getElementsByTag("i")) {
+        final String synonymName = synonym.html();
 
         // issue: not all of these may refer to actual synonyms
-        if (synonym.html().split(" ").length == 1 ||
-          synonym.html().equals(speciesName) ||
-          speciesWithSynonyms.keySet().contains(synonym.html()) ||
-          speciesWithSynonyms.get(speciesName).contains(synonym.html()))
+        if (synonymName.indexOf(' ') < 0 || speciesWithSynonyms.containsKey(synonymName))
           continue;
 
-        speciesWithSynonyms.get(speciesName).add(synonym.html());
+        synonyms.add(synonymName);
       }
     }
 
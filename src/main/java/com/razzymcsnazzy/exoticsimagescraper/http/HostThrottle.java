@@ -0,0 +1,435 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import com.razzymcsnazzy.exoticsimagescraper.metrics.LatencyHistogram;
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+import org.jsoup.HttpStatusException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on concurrent requests to a single host.
+ *
+ * The number of requests allowed in flight grows by about one per round
+ *   trip while responses come back quickly and without errors, and is
+ *   halved on 429s, 5xxs and timeouts (AIMD, like TCP congestion control).
+ *   On top of that, a token bucket caps the request rate, so we go as fast
+ *   as a site allows without getting banned.
+ *
+ * A host that keeps failing gets a circuit breaker: after breakerFailures
+ *   (10) failures in a row, requests to it fail right away for
+ *   breakerCooldownMillis (30 s), then a single request is let through to
+ *   see if it's back, closing the breaker on success and opening it again
+ *   on failure.
+ *
+ * Limits can be set per host via system properties, i.e.
+ *   -Dscraper.host.arachnoboards.com.requestsPerSecond=5, falling back to
+ *   -Dscraper.host.requestsPerSecond=5 for all hosts.
+ */
+public class HostThrottle {
+
+  /**
+   * How a request went, as far as the host's health is concerned.
+   */
+  public enum Outcome {
+    /** Host answered normally (incl. 404s and the like). */
+    SUCCESS,
+    /** Host told us to slow down (429, 503). */
+    THROTTLED,
+    /** Host failed (other 5xx, connection errors). */
+    ERROR,
+    /** Host didn't answer in time. */
+    TIMEOUT,
+    /** We called the request off (it lost a hedge), which says nothing about the host. */
+    CANCELLED
+  }
+
+  /**
+   * Thrown instead of making a request while a host's circuit breaker is open.
+   */
+  public static class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterNanos;
+
+    CircuitOpenException(final String host, final long retryAfterNanos) {
+      super("Circuit breaker open for " + host);
+      this.retryAfterNanos = retryAfterNanos;
+    }
+
+    /**
+     * @return nanos until the breaker lets a request through again
+     */
+    public long getRetryAfterNanos() { return retryAfterNanos; }
+  }
+
+  /**
+   * Throttles by host name.
+   */
+  private static final ConcurrentMap<String, HostThrottle> THROTTLES = new ConcurrentHashMap<>();
+
+  /**
+   * Factor to cut the concurrency limit by on failure.
+   */
+  private static final double DECREASE_FACTOR = 0.5;
+
+  /**
+   * Latency above this multiple of the best latency seen counts as unhealthy.
+   */
+  private static final double LATENCY_TOLERANCE = 3.0;
+
+  /**
+   * Weight of the newest sample in the smoothed latency.
+   */
+  private static final double LATENCY_SMOOTHING = 0.1;
+
+  /**
+   * Number of responses to see before latency is judged at all, so a few
+   *   slow first requests (connection setup, cold caches) don't count.
+   */
+  private static final int LATENCY_WARMUP = 10;
+
+  /**
+   * Name of the host.
+   */
+  private final String host;
+
+  /**
+   * Lower and upper bound of the concurrency limit.
+   */
+  private final double minConcurrency;
+  private final double maxConcurrency;
+
+  /**
+   * Max requests per second (token refill rate), or 0 for no cap.
+   */
+  private final double requestsPerSecond;
+
+  /**
+   * Max number of requests that can be made in a burst.
+   */
+  private final double burst;
+
+  /**
+   * Failures in a row that open the circuit breaker, and how long it stays open.
+   */
+  private final int breakerFailures;
+  private final long breakerCooldownNanos;
+
+  /**
+   * Time the host took to answer page requests.
+   */
+  private final LatencyHistogram fetches;
+
+  /**
+   * Guards all state below.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled whenever a request finishes or the limit grows.
+   */
+  private final Condition slotFreed = lock.newCondition();
+
+  /**
+   * Current concurrency limit.
+   */
+  private double limit;
+
+  /**
+   * Number of requests in flight.
+   */
+  private int inFlight;
+
+  /**
+   * Tokens left in the bucket, and when it was last refilled.
+   */
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Smoothed and best latency seen, in nanos (0 before the first sample).
+   */
+  private double smoothedLatency;
+  private double bestLatency;
+
+  /**
+   * Number of successful responses seen.
+   */
+  private long samples;
+
+  /**
+   * When the limit was last decreased, so one burst of failures only halves it once.
+   */
+  private long lastDecrease;
+
+  /**
+   * Number of failures in a row.
+   */
+  private int consecutiveFailures;
+
+  /**
+   * Until when the circuit breaker is open (0 while closed), and whether
+   *   the request to test the host with is out.
+   */
+  private long openUntil;
+  private boolean probing;
+
+  HostThrottle(final String host, final double initialConcurrency, final double minConcurrency,
+               final double maxConcurrency, final double requestsPerSecond, final double burst,
+               final int breakerFailures, final long breakerCooldownMillis) {
+    this.host = host;
+    this.breakerFailures = breakerFailures;
+    this.breakerCooldownNanos = TimeUnit.MILLISECONDS.toNanos(breakerCooldownMillis);
+    this.minConcurrency = minConcurrency;
+    this.maxConcurrency = maxConcurrency;
+    this.requestsPerSecond = requestsPerSecond;
+    this.burst = Math.max(1, burst);
+    this.limit = Math.max(minConcurrency, Math.min(maxConcurrency, initialConcurrency));
+    this.tokens = this.burst;
+    this.lastRefill = System.nanoTime();
+    this.fetches = ScraperMetrics.get().stage("host." + host + "." + ScraperMetrics.FETCH);
+  }
+
+  /**
+   * Get the throttle for the host of a URL.
+   * @param url to get throttle for
+   * @return the throttle
+   */
+  public static HostThrottle forUrl(final String url) {
+    final String host = URI.create(url.replace(" ", "%20")).getHost();
+    return THROTTLES.computeIfAbsent(host == null ? "" : host, name -> {
+      final HostThrottle throttle = configuredFor(name);
+      ScraperMetrics.get().gauge("host." + name + ".limit", () -> (long) Math.floor(throttle.getLimit()));
+      ScraperMetrics.get().gauge("host." + name + ".inFlight", throttle::getInFlight);
+      return throttle;
+    });
+  }
+
+  /**
+   * Make a throttle for a host from system properties.
+   * @param host to make throttle for
+   * @return the throttle
+   */
+  private static HostThrottle configuredFor(final String host) {
+    final double requestsPerSecond = setting(host, "requestsPerSecond", 10);
+    return new HostThrottle(
+      host,
+      setting(host, "initialConcurrency", 4),
+      setting(host, "minConcurrency", 1),
+      setting(host, "maxConcurrency", 64),
+      requestsPerSecond,
+      setting(host, "burst", Math.max(1, requestsPerSecond)),
+      (int) setting(host, "breakerFailures", 10),
+      (long) setting(host, "breakerCooldownMillis", 30_000));
+  }
+
+  /**
+   * Read a throttle setting, preferring the host specific one.
+   * @param host to read setting for
+   * @param name of the setting
+   * @param defaultValue if neither is set
+   * @return the setting
+   */
+  private static double setting(final String host, final String name, final double defaultValue) {
+    final String value = System.getProperty("scraper.host." + host + "." + name, System.getProperty("scraper.host." + name));
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * Wait until a request may be made to the host.
+   * @return the start time of the request, to hand back to release
+   * @throws InterruptedException if interrupted while waiting
+   * @throws CircuitOpenException if the host's circuit breaker is open
+   */
+  public long acquire() throws InterruptedException, CircuitOpenException {
+    lock.lock();
+    try {
+      boolean probe = false;
+      if (openUntil != 0) {
+        final long now = System.nanoTime();
+        if (now < openUntil || probing) throw new CircuitOpenException(host, Math.max(0, openUntil - now));
+        probing = probe = true;
+      }
+      boolean acquired = false;
+      try {
+        while (true) {
+          if (inFlight < Math.floor(limit)) {
+            final long tokenWait = takeToken();
+            if (tokenWait == 0) break;
+            slotFreed.await(tokenWait, TimeUnit.NANOSECONDS);
+          } else {
+            slotFreed.await();
+          }
+        }
+        inFlight++;
+        acquired = true;
+        return System.nanoTime();
+      } finally {
+        // a probe that never went out must not keep the breaker from testing the host again
+        if (probe && !acquired) probing = false;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Finish a request and adapt the concurrency limit to how it went.
+   * @param start time handed out by acquire
+   * @param outcome of the request
+   */
+  public void release(final long start, final Outcome outcome) {
+    release(start, System.nanoTime(), outcome);
+  }
+
+  /**
+   * Finish a request whose body took a while to read after the host answered
+   *   (i.e. an image download), so only the time to answer counts as latency.
+   * @param start time handed out by acquire
+   * @param answered time the host answered
+   * @param outcome of the request
+   */
+  public void release(final long start, final long answered, final Outcome outcome) {
+    final long now = System.nanoTime();
+    final double latency = answered - start;
+    lock.lock();
+    try {
+      inFlight--;
+      if (outcome == Outcome.CANCELLED) {
+        // a called off probe must not keep the breaker from ever testing the host again
+        probing = false;
+        slotFreed.signalAll();
+        return;
+      }
+      trip(outcome, now);
+      if (outcome == Outcome.SUCCESS) {
+        bestLatency = bestLatency == 0 ? latency : Math.min(bestLatency, latency);
+        smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency + LATENCY_SMOOTHING * (latency - smoothedLatency);
+        samples++;
+
+        // additive increase: about one more slot per limit's worth of healthy responses
+        if (samples < LATENCY_WARMUP || smoothedLatency <= LATENCY_TOLERANCE * bestLatency) {
+          limit = Math.min(maxConcurrency, limit + 1 / limit);
+        } else {
+          decrease(now);
+        }
+      } else {
+        decrease(now);
+      }
+      slotFreed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Classify a response status.
+   * @param status of the response
+   * @return the outcome
+   */
+  public static Outcome outcomeOf(final int status) {
+    if (status == 429 || status == 503) return Outcome.THROTTLED;
+    if (status >= 500) return Outcome.ERROR;
+    return Outcome.SUCCESS;
+  }
+
+  /**
+   * Classify a failed request.
+   * @param e the request failed with
+   * @return the outcome
+   */
+  public static Outcome outcomeOf(final IOException e) {
+    if (e instanceof Transport.CancelledException) return Outcome.CANCELLED;
+    if (e instanceof HttpStatusException) return outcomeOf(((HttpStatusException) e).getStatusCode());
+    if (e instanceof SocketTimeoutException) return Outcome.TIMEOUT;
+    return Outcome.ERROR;
+  }
+
+  /**
+   * @return time the host took to answer page requests so far
+   */
+  public LatencyHistogram getFetches() { return fetches; }
+
+  /**
+   * @return number of requests in flight
+   */
+  public long getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return current concurrency limit
+   */
+  public double getLimit() {
+    lock.lock();
+    try {
+      return limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Open or close the circuit breaker, depending on how a request went.
+   * @param outcome of the request
+   * @param now current time
+   */
+  private void trip(final Outcome outcome, final long now) {
+    if (outcome == Outcome.SUCCESS) {
+      consecutiveFailures = 0;
+      if (openUntil != 0) System.err.println("Closing circuit breaker of " + host);
+      openUntil = 0;
+      probing = false;
+      return;
+    }
+    consecutiveFailures++;
+    if (openUntil == 0 && consecutiveFailures < breakerFailures) return;
+    if (openUntil == 0) {
+      System.err.println("Opening circuit breaker of " + host + " after " + consecutiveFailures + " failures in a row");
+      ScraperMetrics.get().count("host." + host + ".breakerOpened", 1);
+    }
+    openUntil = now + breakerCooldownNanos;
+    probing = false;
+  }
+
+  /**
+   * Multiplicative decrease, at most once per smoothed round trip.
+   * @param now current time
+   */
+  private void decrease(final long now) {
+    if (now - lastDecrease < smoothedLatency) return;
+    lastDecrease = now;
+    final double previous = limit;
+    limit = Math.max(minConcurrency, limit * DECREASE_FACTOR);
+    if (Math.floor(previous) != Math.floor(limit))
+      System.err.println("Backing off " + host + ": at most " + (int) Math.floor(limit) + " concurrent requests");
+  }
+
+  /**
+   * Take a token from the bucket, if there is one.
+   * @return 0 if a token was taken, otherwise nanos until the next one
+   */
+  private long takeToken() {
+    if (requestsPerSecond <= 0) return 0;
+    final long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefill) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+    lastRefill = now;
+    if (tokens >= 1) {
+      tokens--;
+      return 0;
+    }
+    return Math.max(1, (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+  }
+}
@@ -0,0 +1,277 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import com.google.common.hash.Hashing;
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of HTML pages that revalidates with conditional requests.
+ *
+ * Each page is stored as a body file plus a meta file holding its ETag and
+ *   Last-Modified headers. Pages younger than the max age are served without
+ *   asking the server at all; older ones are revalidated with If-None-Match /
+ *   If-Modified-Since, so an unchanged page costs a 304 instead of a download.
+ *   When the bodies take up more than the max size, the least recently used
+ *   pages are evicted. In offline mode pages are only ever served from cache.
+ */
+public class PageCache {
+
+  /**
+   * Directory the cache lives in.
+   */
+  private final File dir;
+
+  /**
+   * Max total size of all cached bodies, in bytes.
+   */
+  private final long maxBytes;
+
+  /**
+   * Age up to which a page is served without revalidating it, in millis.
+   */
+  private final long maxAgeMillis;
+
+  /**
+   * Whether to never go to the network.
+   */
+  private final boolean offline;
+
+  /**
+   * Total size of all cached bodies, in bytes.
+   */
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param dir to keep the cache in
+   * @param maxBytes total size of all cached bodies, in bytes
+   * @param maxAgeMillis age up to which a page is served without revalidating it
+   * @param offline to only serve pages from cache
+   */
+  public PageCache(final File dir, final long maxBytes, final long maxAgeMillis, final boolean offline) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.offline = offline;
+    dir.mkdirs();
+    for (File body : bodies()) totalBytes.addAndGet(body.length());
+  }
+
+  /**
+   * Make a cache configured by system properties:
+   *   [prefix].cache.dir, [prefix].cache.maxBytes, [prefix].cache.maxAgeHours and [prefix].offline.
+   * @param prefix of the properties
+   * @param defaultDir if no directory is configured
+   * @return the cache
+   */
+  public static PageCache configured(final String prefix, final File defaultDir) {
+    return new PageCache(
+      new File(System.getProperty(prefix + ".cache.dir", defaultDir.getPath())),
+      Long.getLong(prefix + ".cache.maxBytes", 64L * 1024 * 1024),
+      TimeUnit.HOURS.toMillis(Long.getLong(prefix + ".cache.maxAgeHours", 24L)),
+      Boolean.getBoolean(prefix + ".offline"));
+  }
+
+  /**
+   * Get a page, from cache if it is fresh or unchanged.
+   * @param url of the page
+   * @return the page
+   * @throws IOException if the page can't be fetched (or isn't cached, when offline)
+   */
+  public Document get(final String url) throws IOException {
+    final String key = Hashing.sha256().hashString(url, StandardCharsets.UTF_8).toString();
+    final File body = new File(dir, key + ".body");
+    final File metaFile = new File(dir, key + ".meta");
+    final Properties meta = readMeta(metaFile);
+
+    // serve without asking, if we may
+    if (meta != null && body.exists()) {
+      final long age = System.currentTimeMillis() - Long.parseLong(meta.getProperty("storedAt", "0"));
+      if (offline || age < maxAgeMillis) {
+        ScraperMetrics.get().count("pageCache.fresh", 1);
+        return served(body, metaFile, meta, url);
+      }
+    }
+    if (offline) throw new IOException("Offline and not cached: " + url);
+
+    // revalidate or fetch
+    final Map<String, String> headers = new HashMap<>();
+    if (meta != null && body.exists()) {
+      if (meta.containsKey("etag")) headers.put("If-None-Match", meta.getProperty("etag"));
+      if (meta.containsKey("lastModified")) headers.put("If-Modified-Since", meta.getProperty("lastModified"));
+    }
+    final Transport.Response response = Retries.call(() -> execute(url, headers));
+    final byte[] bytes = response.bodyAsBytes();
+
+    if (response.statusCode() == 304 && meta != null && body.exists()) {
+      ScraperMetrics.get().count("pageCache.notModified", 1);
+      meta.setProperty("storedAt", Long.toString(System.currentTimeMillis()));
+      writeMeta(metaFile, meta);
+      return served(body, metaFile, meta, url);
+    }
+    if (response.statusCode() >= 400) {
+      throw new HttpStatusException("HTTP error fetching URL", response.statusCode(), url);
+    }
+
+    // store new version
+    ScraperMetrics.get().count("pageCache.miss", 1);
+    final Properties fresh = new Properties();
+    fresh.setProperty("url", url);
+    fresh.setProperty("storedAt", Long.toString(System.currentTimeMillis()));
+    if (response.charset() != null) fresh.setProperty("charset", response.charset());
+    if (response.header("ETag") != null) fresh.setProperty("etag", response.header("ETag"));
+    if (response.header("Last-Modified") != null) fresh.setProperty("lastModified", response.header("Last-Modified"));
+
+    final long previousSize = body.exists() ? body.length() : 0;
+    final File tmp = new File(dir, key + ".body.tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      out.write(bytes);
+    }
+    Files.move(tmp.toPath(), body.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    writeMeta(metaFile, fresh);
+    if (totalBytes.addAndGet(bytes.length - previousSize) > maxBytes) evict();
+
+    return Jsoup.parse(new String(bytes, charsetOf(fresh)), url);
+  }
+
+  /**
+   * Make a request through the host's throttle.
+   * @param url of the request
+   * @param headers to send along
+   * @return the response, with its body read
+   * @throws IOException if the request fails, or the host had a problem
+   */
+  private static Transport.Response execute(final String url, final Map<String, String> headers) throws IOException {
+    final HostThrottle throttle = HostThrottle.forUrl(url);
+    final long start;
+    try {
+      start = throttle.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + url);
+    }
+
+    HostThrottle.Outcome outcome = HostThrottle.Outcome.ERROR;
+    try {
+      final Transport.Response response = Transport.get(url, headers, true);
+      response.bodyAsBytes();
+      ScraperMetrics.get().stage(ScraperMetrics.FETCH).recordSince(start);
+      ScraperMetrics.get().status(response.statusCode());
+      outcome = HostThrottle.outcomeOf(response.statusCode());
+      if (outcome != HostThrottle.Outcome.SUCCESS) throw new HttpStatusException("HTTP error fetching URL", response.statusCode(), url);
+      if (Recorder.isRecording() && response.statusCode() != 304) Recorder.record(url, response.statusCode(), response.contentType(), response.bodyAsBytes());
+      return response;
+    } catch (IOException e) {
+      outcome = HostThrottle.outcomeOf(e);
+      throw e;
+    } finally {
+      throttle.release(start, outcome);
+    }
+  }
+
+  /**
+   * Parse a cached page and mark it as recently used.
+   * @param body file of the page
+   * @param metaFile of the page
+   * @param meta of the page
+   * @param url of the page
+   * @return the page
+   * @throws IOException if the page can't be read
+   */
+  private Document served(final File body, final File metaFile, final Properties meta, final String url) throws IOException {
+    metaFile.setLastModified(System.currentTimeMillis());
+    try (InputStream in = new FileInputStream(body)) {
+      return Jsoup.parse(in, charsetOf(meta), url);
+    }
+  }
+
+  /**
+   * Delete least recently used pages until the cache is within its size.
+   */
+  private synchronized void evict() {
+    if (totalBytes.get() <= maxBytes) return;
+    final List<File> metas = new ArrayList<>();
+    for (File body : bodies()) metas.add(new File(dir, body.getName().replace(".body", ".meta")));
+    metas.sort(Comparator.comparingLong(File::lastModified));
+
+    for (File metaFile : metas) {
+      if (totalBytes.get() <= maxBytes) break;
+      final File body = new File(dir, metaFile.getName().replace(".meta", ".body"));
+      final long size = body.length();
+      if (body.delete()) totalBytes.addAndGet(-size);
+      metaFile.delete();
+    }
+  }
+
+  /**
+   * @return all cached body files
+   */
+  private List<File> bodies() {
+    final List<File> bodies = new ArrayList<>();
+    for (File file : Objects.requireNonNull(dir.listFiles())) {
+      if (file.getName().endsWith(".body")) bodies.add(file);
+    }
+    return bodies;
+  }
+
+  /**
+   * Read a page's meta file.
+   * @param metaFile to read
+   * @return the meta data, or null if there is none
+   */
+  private static Properties readMeta(final File metaFile) {
+    if (!metaFile.exists()) return null;
+    final Properties meta = new Properties();
+    try (InputStream in = new FileInputStream(metaFile)) {
+      meta.load(in);
+      return meta;
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println("Ignoring unreadable cache entry " + metaFile.getPath() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Write a page's meta file.
+   * @param metaFile to write
+   * @param meta to write
+   * @throws IOException if writing fails
+   */
+  private static void writeMeta(final File metaFile, final Properties meta) throws IOException {
+    final File tmp = new File(metaFile.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      meta.store(out, null);
+    }
+    Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param meta of a page
+   * @return the page's charset
+   */
+  private static String charsetOf(final Properties meta) {
+    return meta.getProperty("charset", StandardCharsets.UTF_8.name());
+  }
+}
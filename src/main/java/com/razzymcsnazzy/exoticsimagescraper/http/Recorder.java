@@ -0,0 +1,148 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Records every response the scraper gets, so a crawl can later be replayed
+ *   against a ReplayServer instead of the live sites.
+ *
+ * Recording is on when -Dhttp.record.dir is set. Each response is stored
+ *   like a PageCache entry: a body file plus a meta file with its status and
+ *   content type, named by the hash of its URL without the scheme (i.e.
+ *   arachnoboards.com/tags/brachypelma-smithi/). Pages the WSC cache serves
+ *   without asking aren't recorded, so record with an empty cache.
+ */
+public final class Recorder {
+
+  /**
+   * Directory to record to, or null if not recording.
+   */
+  private static final File DIR = System.getProperty("http.record.dir") == null
+    ? null : new File(System.getProperty("http.record.dir"));
+
+  static {
+    if (DIR != null) {
+      DIR.mkdirs();
+      System.out.println("Recording responses to " + DIR.getPath());
+    }
+  }
+
+  private Recorder() { }
+
+  /**
+   * @return whether responses are being recorded
+   */
+  public static boolean isRecording() { return DIR != null; }
+
+  /**
+   * Record a response.
+   * @param url of the request
+   * @param status of the response
+   * @param contentType of the response, or null
+   * @param body of the response
+   */
+  public static void record(final String url, final int status, final String contentType, final byte[] body) {
+    if (DIR == null) return;
+    final File bodyFile = bodyFile(DIR, key(url));
+    try {
+      final File tmp = new File(bodyFile.getPath() + ".tmp");
+      try (OutputStream out = new FileOutputStream(tmp)) {
+        out.write(body);
+      }
+      Files.move(tmp.toPath(), bodyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      writeMeta(url, status, contentType);
+    } catch (IOException e) {
+      System.err.println("Error recording " + url + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Record a response whose body was streamed to a file.
+   * @param url of the request
+   * @param status of the response
+   * @param contentType of the response, or null
+   * @param body file holding the body
+   */
+  public static void recordFile(final String url, final int status, final String contentType, final File body) {
+    if (DIR == null) return;
+    try {
+      Files.copy(body.toPath(), bodyFile(DIR, key(url)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      writeMeta(url, status, contentType);
+    } catch (IOException e) {
+      System.err.println("Error recording " + url + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * A recorded response.
+   */
+  static class Recording {
+    final int status;
+    final String contentType;
+    final File body;
+
+    Recording(final int status, final String contentType, final File body) {
+      this.status = status;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Look up a recorded response.
+   * @param dir recorded to
+   * @param key of the request (URL without scheme)
+   * @return the recording, or null if the request wasn't recorded
+   * @throws IOException if the recording can't be read
+   */
+  static Recording find(final File dir, final String key) throws IOException {
+    final File metaFile = metaFile(dir, key);
+    if (!metaFile.exists()) return null;
+    final Properties meta = new Properties();
+    try (InputStream in = new FileInputStream(metaFile)) {
+      meta.load(in);
+    }
+    return new Recording(Integer.parseInt(meta.getProperty("status", "200")), meta.getProperty("contentType"), bodyFile(dir, key));
+  }
+
+  /**
+   * @param url of a request
+   * @return the request's key: its URL without the scheme
+   */
+  static String key(final String url) {
+    final int scheme = url.indexOf("://");
+    return scheme < 0 ? url : url.substring(scheme + 3);
+  }
+
+  private static void writeMeta(final String url, final int status, final String contentType) throws IOException {
+    final Properties meta = new Properties();
+    meta.setProperty("url", url);
+    meta.setProperty("status", Integer.toString(status));
+    if (contentType != null) meta.setProperty("contentType", contentType);
+    final File metaFile = metaFile(DIR, key(url));
+    final File tmp = new File(metaFile.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      meta.store(out, null);
+    }
+    Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static File bodyFile(final File dir, final String key) { return new File(dir, hash(key) + ".body"); }
+
+  private static File metaFile(final File dir, final String key) { return new File(dir, hash(key) + ".meta"); }
+
+  private static String hash(final String key) {
+    return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+  }
+}
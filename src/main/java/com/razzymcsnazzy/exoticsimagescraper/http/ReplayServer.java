@@ -0,0 +1,211 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for arachnoboards.com and wsc.nmbe.ch, for load testing
+ *   and regression testing the crawl without touching the live sites.
+ *
+ * Requests are expected as /[host]/[path], so point the scraper at it with
+ *   -Dscraper.ab.root=http://localhost:8080/arachnoboards.com/ and
+ *   -Dwsc.root=http://localhost:8080/wsc.nmbe.ch
+ *   and it serves responses captured by the Recorder (-Dreplay.dir), or a
+ *   SyntheticCatalog of any size (-Dreplay.scale=10).
+ *
+ * To see how the crawl copes with a bad day, the server can inject
+ *   latency (-Dreplay.latencyMillis, -Dreplay.jitterMillis), errors
+ *   (-Dreplay.errorRate=0.05 answers 5% of requests with a 503), bodies
+ *   cut off halfway (-Dreplay.cutShortRate=0.05) and a bandwidth limit per
+ *   response (-Dreplay.bytesPerSecond). A site that
+ *   moved, like Arachnoboards sending http to https, is played by
+ *   /moved/[host]/[path], which answers with a 301 to /[host]/[path].
+ *
+ * Both sites are then one host to the HostThrottle, so raise its limits for
+ *   localhost when load testing (i.e. -Dscraper.host.localhost.requestsPerSecond=5000
+ *   and -Dscraper.host.localhost.minConcurrency=64), otherwise the scraper's
+ *   politeness is what gets measured. Pages/sec, images/sec and peak heap
+ *   end up in the run's metrics summary.
+ */
+public class ReplayServer {
+
+  private static final long LATENCY_MILLIS = Long.getLong("replay.latencyMillis", 0L);
+  private static final long JITTER_MILLIS = Long.getLong("replay.jitterMillis", 0L);
+  private static final double ERROR_RATE = Double.parseDouble(System.getProperty("replay.errorRate", "0"));
+  private static final double CUT_SHORT_RATE = Double.parseDouble(System.getProperty("replay.cutShortRate", "0"));
+  private static final long BYTES_PER_SECOND = Long.getLong("replay.bytesPerSecond", 0L);
+
+  /**
+   * Size of the chunks a bandwidth limited body is written in.
+   */
+  private static final int CHUNK = 16 * 1024;
+
+  /**
+   * Prefix of requests that are redirected to the rest of their path.
+   */
+  static final String MOVED = "moved/";
+
+  static {
+    // headers and body go out as separate writes, which Nagle's algorithm holds back ~40 ms each
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final HttpServer server;
+  private final ExecutorService handlers;
+  private final File recordings;
+  private final SyntheticCatalog catalog;
+
+  private final AtomicLong numRequests = new AtomicLong();
+  private final AtomicLong numErrors = new AtomicLong();
+  private final AtomicLong numCutShort = new AtomicLong();
+  private final AtomicLong numMissing = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param port to listen on
+   * @param threads to handle requests with (injected latency holds one)
+   * @param recordings to replay, or null to serve a synthetic catalog
+   * @param scale of the synthetic catalog
+   * @param imageBytes size of synthetic images
+   * @throws IOException if the port can't be bound
+   */
+  public ReplayServer(final int port, final int threads, final File recordings, final int scale, final int imageBytes) throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+    this.handlers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("Replay Thread %d").build());
+    this.recordings = recordings;
+    this.catalog = recordings == null ? new SyntheticCatalog(scale, imageBytes) : null;
+    server.setExecutor(handlers);
+    server.createContext("/", this::handle);
+  }
+
+  /**
+   * Run a replay server until killed. Configured by system properties:
+   *   replay.port (8080), replay.threads (256), replay.dir (recordings to serve),
+   *   replay.scale (of the synthetic catalog, if no recordings, 1) and
+   *   replay.imageBytes (size of synthetic images, 150000).
+   */
+  public static void main(final String[] args) throws IOException {
+    final String dir = System.getProperty("replay.dir");
+    final ReplayServer server = new ReplayServer(
+      Integer.getInteger("replay.port", 8080),
+      Integer.getInteger("replay.threads", 256),
+      dir == null ? null : new File(dir),
+      Integer.getInteger("replay.scale", 1),
+      Integer.getInteger("replay.imageBytes", 150_000));
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    server.start();
+  }
+
+  /**
+   * Start serving.
+   */
+  public void start() {
+    server.start();
+    System.out.println("Replaying " + (recordings == null ? "synthetic catalog" : recordings.getPath())
+      + " on port " + server.getAddress().getPort());
+  }
+
+  /**
+   * @return port the server listens on, i.e. the one picked for port 0
+   */
+  public int getPort() { return server.getAddress().getPort(); }
+
+  /**
+   * Stop serving, and print what was served.
+   */
+  public void stop() {
+    server.stop(0);
+    handlers.shutdownNow();
+    System.out.println("Served " + numRequests.get() + " requests (" + numErrors.get() + " injected errors, "
+      + numCutShort.get() + " cut short, " + numMissing.get() + " not recorded)");
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    try {
+      numRequests.incrementAndGet();
+      final String key = exchange.getRequestURI().getRawPath().substring(1)
+        + (exchange.getRequestURI().getRawQuery() == null ? "" : "?" + exchange.getRequestURI().getRawQuery());
+
+      if (key.startsWith(MOVED)) {
+        exchange.getResponseHeaders().set("Location", "/" + key.substring(MOVED.length()));
+        exchange.sendResponseHeaders(301, -1);
+        return;
+      }
+
+      // fault injection
+      final long latency = LATENCY_MILLIS + (JITTER_MILLIS > 0 ? ThreadLocalRandom.current().nextLong(JITTER_MILLIS + 1) : 0);
+      if (latency > 0) TimeUnit.MILLISECONDS.sleep(latency);
+      if (ERROR_RATE > 0 && ThreadLocalRandom.current().nextDouble() < ERROR_RATE) {
+        numErrors.incrementAndGet();
+        exchange.sendResponseHeaders(503, -1);
+        return;
+      }
+
+      // recorded or generated response
+      final int status;
+      final String contentType;
+      final byte[] body;
+      if (catalog != null) {
+        final SyntheticCatalog.Response response = catalog.respond(key);
+        status = response.status;
+        contentType = response.contentType;
+        body = response.body;
+      } else {
+        final Recorder.Recording recording = Recorder.find(recordings, key);
+        if (recording == null) {
+          numMissing.incrementAndGet();
+          exchange.sendResponseHeaders(404, -1);
+          return;
+        }
+        status = recording.status;
+        contentType = recording.contentType;
+        body = recording.body.exists() ? Files.readAllBytes(recording.body.toPath()) : new byte[0];
+      }
+
+      if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+      if (body.length > 1 && CUT_SHORT_RATE > 0 && ThreadLocalRandom.current().nextDouble() < CUT_SHORT_RATE) {
+        numCutShort.incrementAndGet();
+        write(exchange.getResponseBody(), Arrays.copyOf(body, body.length / 2));
+        return;
+      }
+      if (body.length > 0) write(exchange.getResponseBody(), body);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Write a body, no faster than the bandwidth limit if there is one.
+   */
+  private static void write(final OutputStream out, final byte[] body) throws IOException, InterruptedException {
+    if (BYTES_PER_SECOND <= 0) {
+      out.write(body);
+      return;
+    }
+    final long start = System.nanoTime();
+    for (int offset = 0; offset < body.length; offset += CHUNK) {
+      final int length = Math.min(CHUNK, body.length - offset);
+      out.write(body, offset, length);
+      out.flush();
+      final long due = start + TimeUnit.SECONDS.toNanos(offset + length) / BYTES_PER_SECOND;
+      final long wait = due - System.nanoTime();
+      if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+}
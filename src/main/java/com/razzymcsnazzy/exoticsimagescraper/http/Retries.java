@@ -0,0 +1,207 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.razzymcsnazzy.exoticsimagescraper.metrics.LatencyHistogram;
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+import org.jsoup.HttpStatusException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries requests that failed for reasons that may pass: timeouts, dropped
+ *   connections, bodies cut short, 429s and 5xxs, and hosts whose circuit
+ *   breaker is open.
+ *
+ * Up to -Dhttp.retries (3) retries are made, each after a random wait of up
+ *   to -Dhttp.retryBaseMillis (500) doubled per retry, capped at
+ *   -Dhttp.retryMaxMillis (30 s), so failed requests don't all come back at
+ *   once. A host with an open breaker isn't asked again before it closes.
+ *
+ * With -Dhttp.hedge=true, a page that takes longer than 95% of fetches from
+ *   its host so far is asked for a second time, and whichever answer comes
+ *   first wins, so the odd stuck request doesn't hold up a listing walk. The
+ *   loser is called off, so it lets go of its connection and its host's
+ *   permit instead of running on.
+ */
+public final class Retries {
+
+  private static final int MAX_RETRIES = Integer.getInteger("http.retries", 3);
+  private static final long BASE_MILLIS = Long.getLong("http.retryBaseMillis", 500L);
+  private static final long MAX_MILLIS = Long.getLong("http.retryMaxMillis", 30_000L);
+
+  /**
+   * Whether to hedge page requests, the percentile of fetch latency to hedge
+   *   after, and the number of fetches to see before hedging at all.
+   */
+  private static final boolean HEDGE = Boolean.getBoolean("http.hedge");
+  private static final double HEDGE_PERCENTILE = 95;
+  private static final long HEDGE_MIN_SAMPLES = 100;
+
+  /**
+   * Threads hedged requests run on.
+   */
+  private static final ExecutorService HEDGES = Executors.newCachedThreadPool(
+    new ThreadFactoryBuilder().setNameFormat("Hedge Thread %d").setDaemon(true).build());
+
+  /**
+   * A request, made through the host's throttle.
+   */
+  public interface Attempt<T> {
+    T call() throws IOException;
+  }
+
+  private Retries() { }
+
+  /**
+   * Make a request, retrying it if it fails for a reason that may pass.
+   * @param attempt to make
+   * @return result of the first attempt that succeeded
+   * @throws IOException of the last attempt, or the first that isn't worth retrying
+   */
+  public static <T> T call(final Attempt<T> attempt) throws IOException {
+    return call(attempt, null);
+  }
+
+  /**
+   * Make a request like call, hedging each attempt if hedging is on.
+   * @param url the request is for, to hedge after its host's latency
+   * @param attempt to make
+   * @return result of the first attempt that succeeded
+   * @throws IOException of the last attempt, or the first that isn't worth retrying
+   */
+  public static <T> T callHedged(final String url, final Attempt<T> attempt) throws IOException {
+    return call(attempt, HEDGE ? HostThrottle.forUrl(url).getFetches() : null);
+  }
+
+  private static <T> T call(final Attempt<T> attempt, final LatencyHistogram hedgeAfter) throws IOException {
+    for (int retry = 0; ; retry++) {
+      try {
+        return hedgeAfter != null ? hedge(attempt, hedgeAfter) : attempt.call();
+      } catch (IOException e) {
+        if (retry >= MAX_RETRIES || !isTransient(e)) throw e;
+        long waitMillis = ThreadLocalRandom.current().nextLong(Math.min(MAX_MILLIS, BASE_MILLIS << Math.min(retry, 20)) + 1);
+        if (e instanceof HostThrottle.CircuitOpenException) {
+          waitMillis += TimeUnit.NANOSECONDS.toMillis(((HostThrottle.CircuitOpenException) e).getRetryAfterNanos());
+        }
+        ScraperMetrics.get().count(ScraperMetrics.RETRIES, 1);
+        try {
+          TimeUnit.MILLISECONDS.sleep(waitMillis);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+      }
+    }
+  }
+
+  /**
+   * Make an attempt, and a second one if the first takes longer than most.
+   *   Whichever is still running once there's an answer is called off.
+   * @param attempt to make
+   * @param fetches of the host, to tell what takes longer than most
+   */
+  private static <T> T hedge(final Attempt<T> attempt, final LatencyHistogram fetches) throws IOException {
+    if (fetches.getCount() < HEDGE_MIN_SAMPLES) return attempt.call();
+    final long delayMicros = (long) (fetches.getPercentileMillis(HEDGE_PERCENTILE) * 1000);
+
+    final CompletionService<T> attempts = new ExecutorCompletionService<>(HEDGES);
+    final Hedged<T> first = new Hedged<>(attempt);
+    Hedged<T> second = null;
+    first.future = attempts.submit(first);
+    try {
+      Future<T> done = attempts.poll(delayMicros, TimeUnit.MICROSECONDS);
+      if (done != null) return result(done);
+
+      // first attempt is slow, let a second one race it
+      ScraperMetrics.get().count("hedges", 1);
+      second = new Hedged<>(attempt);
+      second.future = attempts.submit(second);
+      done = attempts.take();
+      try {
+        final T result = result(done);
+        if (done == second.future) ScraperMetrics.get().count("hedgesWon", 1);
+        return result;
+      } catch (IOException e) {
+        return result(attempts.take());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a response");
+    } finally {
+      first.cancel();
+      if (second != null) second.cancel();
+    }
+  }
+
+  /**
+   * An attempt run on a hedge thread, which can be called off while it waits
+   *   for its host or has an exchange open.
+   */
+  private static final class Hedged<T> implements Callable<T> {
+    private final Attempt<T> attempt;
+    private final Transport.Cancellation cancellation = new Transport.Cancellation();
+    private Future<T> future;
+
+    Hedged(final Attempt<T> attempt) {
+      this.attempt = attempt;
+    }
+
+    @Override
+    public T call() throws IOException {
+      Transport.CANCELLATION.set(cancellation);
+      try {
+        return attempt.call();
+      } finally {
+        Transport.CANCELLATION.remove();
+      }
+    }
+
+    /**
+     * Call the attempt off, unless it's done.
+     */
+    void cancel() {
+      if (future.isDone()) return;
+      cancellation.cancel();
+      future.cancel(true);
+    }
+  }
+
+  private static <T> T result(final Future<T> attempt) throws IOException, InterruptedException {
+    try {
+      return attempt.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * @param e a request failed with
+   * @return whether trying again later might work
+   */
+  static boolean isTransient(final IOException e) {
+    if (e instanceof HttpStatusException) {
+      return HostThrottle.outcomeOf(((HttpStatusException) e).getStatusCode()) != HostThrottle.Outcome.SUCCESS;
+    }
+    return e instanceof HostThrottle.CircuitOpenException
+      || e instanceof EOFException
+      || e instanceof SocketTimeoutException
+      || e instanceof SocketException
+      || e instanceof UnknownHostException;
+  }
+}
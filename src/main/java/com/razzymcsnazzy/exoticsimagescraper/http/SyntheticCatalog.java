@@ -0,0 +1,272 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A made up World Spider Catalog and Arachnoboards, generated on request,
+ *   for load testing the crawl at any size without recording one first.
+ *
+ * At scale 1 it's about the size of the real thing: 150 genera of up to
+ *   12 species, each with two synonyms, and up to 40 images per tag (most
+ *   synonyms have no tag at all). Higher scales add genera, so a scale of
+ *   100 makes a catalog 100 times the real size. Everything is derived from
+ *   the names and media IDs in the URL, so every run sees the same catalog.
+ *
+ * Pages look like the real ones as far as the scraper's extraction is
+ *   concerned, and images are small JPEGs padded to a realistic size.
+ *
+ * Real tags are far from even: a few popular species have hundreds of
+ *   listing pages. With -Dreplay.popularImages=4000, the first species of
+ *   every 25th genus gets that many images (at most 4095), to see how the
+ *   crawl copes with the long tail.
+ *
+ * With -Dreplay.brokenImageEvery=50, every 50th image is broken in turn:
+ *   an error page served as a JPEG, a JPEG cut off half way, or a thumbnail.
+ */
+class SyntheticCatalog {
+
+  /**
+   * Number of genera at scale 1.
+   */
+  private static final int GENERA = 150;
+
+  /**
+   * Max number of species per genus, images per accepted name's tag and images per synonym's tag.
+   */
+  private static final int MAX_SPECIES = 12;
+  private static final int MAX_IMAGES = 40;
+  private static final int MAX_SYNONYM_IMAGES = 10;
+
+  /**
+   * Number of thumbnails per tag listing page.
+   */
+  private static final int PAGE_SIZE = 20;
+
+  /**
+   * Number of images of each popular species, every how many genera one is, and
+   *   the bit marking their media IDs, which have room for an index of 12 bits.
+   */
+  private static final int POPULAR_IMAGES = Math.min(4095, Integer.getInteger("replay.popularImages", 0));
+  private static final int POPULAR_EVERY = 25;
+  private static final int POPULAR = 1 << 30;
+
+  /**
+   * Every how many images one is broken, if any.
+   */
+  private static final int BROKEN_EVERY = Integer.getInteger("replay.brokenImageEvery", 0);
+
+  private static final String GENUS = "Synthopelma";
+  private static final String SYNONYM_GENUS = "Synthopelmides";
+
+  private static final Pattern GENUS_PAGE = Pattern.compile("wsc\\.nmbe\\.ch/genus/(\\d+)");
+  private static final Pattern TAG_PAGE = Pattern.compile(
+    "arachnoboards\\.com/tags/synthopelma(|ides)(\\d+)-sp(\\d+)/(?:page-(\\d+)/)?");
+  private static final Pattern MEDIA = Pattern.compile("arachnoboards\\.com/media/[a-z0-9-]+\\.(\\d+)/(full)?");
+
+  /**
+   * A generated response.
+   */
+  static class Response {
+    final int status;
+    final String contentType;
+    final byte[] body;
+
+    Response(final int status, final String contentType, final byte[] body) {
+      this.status = status;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  private final int numGenera;
+  private final int imageBytes;
+
+  /**
+   * Constructor.
+   * @param scale of the catalog relative to the real one
+   * @param imageBytes size to pad images to
+   */
+  SyntheticCatalog(final int scale, final int imageBytes) {
+    this.numGenera = GENERA * scale;
+    this.imageBytes = imageBytes;
+  }
+
+  /**
+   * Generate the response to a request.
+   * @param key of the request (URL without scheme)
+   * @return the response
+   * @throws IOException if an image can't be encoded
+   */
+  Response respond(final String key) throws IOException {
+    if (key.startsWith("wsc.nmbe.ch/genlist/")) return html(generaPage());
+
+    Matcher matcher = GENUS_PAGE.matcher(key);
+    if (matcher.matches()) {
+      final int genus = Integer.parseInt(matcher.group(1));
+      return genus < numGenera ? html(genusPage(genus)) : notFound();
+    }
+
+    matcher = TAG_PAGE.matcher(key);
+    if (matcher.matches()) {
+      final int variant = matcher.group(1).isEmpty() ? 0 : 1;
+      final int genus = Integer.parseInt(matcher.group(2));
+      final int species = Integer.parseInt(matcher.group(3));
+      final int page = matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4));
+      final int numImages = numImages(genus, species, variant);
+      if (genus >= numGenera || species >= numSpecies(genus) || numImages < 0 || (page - 1) * PAGE_SIZE >= Math.max(1, numImages)) {
+        return notFound();
+      }
+      return html(tagPage(genus, species, variant, page, numImages));
+    }
+
+    matcher = MEDIA.matcher(key);
+    if (matcher.matches()) {
+      final int mediaId = Integer.parseInt(matcher.group(1));
+      if (matcher.group(2) != null) return new Response(200, "image/jpeg", BROKEN_EVERY > 0 && mediaId % BROKEN_EVERY == 0
+        ? brokenImage(mediaId)
+        : image(mediaId, 80, 64));
+      return html(galleryPage(mediaId));
+    }
+    return notFound();
+  }
+
+  private String generaPage() {
+    final StringBuilder page = new StringBuilder(64 * numGenera)
+      .append("<html><body><table class=\"genera\"><tr><th>Genus</th><th>Species</th></tr>\n");
+    for (int genus = 0; genus < numGenera; genus++) {
+      page.append("<tr><td><i>").append(GENUS).append(genus).append("</i> Synthetic, 2019</td>")
+        .append("<td><a href=\"/genus/").append(genus).append("\" title=\"Show species entries\">")
+        .append(numSpecies(genus)).append("</a></td></tr>\n");
+    }
+    return page.append("</table></body></html>").toString();
+  }
+
+  private String genusPage(final int genus) {
+    final StringBuilder page = new StringBuilder("<html><body><h2>Gen. <i>" + GENUS + genus + "</i></h2>\n");
+    for (int species = 0; species < numSpecies(genus); species++) {
+      page.append("<div class=\"speciesTitle\"><strong><i>").append(GENUS).append(genus).append(" sp").append(species)
+        .append("</i> (Synthetic, 2019)</strong></div>\n<div class=\"speciesEntries\"><br>")
+        .append("<i>").append(SYNONYM_GENUS).append(genus).append(" sp").append(species).append("</i> Synthetic, 1901: 1.<br>")
+        .append("<i>").append(GENUS).append(genus).append(" sp").append(species).append("</i> Synthetic, 2019: 2.<br>")
+        .append("<i>").append(GENUS).append("</i> (cf. Synthetic, 2019)<br></div>\n");
+    }
+    return page.append("</body></html>").toString();
+  }
+
+  private String tagPage(final int genus, final int species, final int variant, final int page, final int numImages) {
+    final String slug = slug(genus, species, variant);
+    final StringBuilder html = new StringBuilder("<html><body><h1>Tagged: ").append(slug).append("</h1>\n<ol class=\"mediaList\">\n");
+    for (int i = (page - 1) * PAGE_SIZE; i < Math.min(numImages, page * PAGE_SIZE); i++) {
+      final int mediaId = mediaId(genus, species, variant, i);
+      html.append("<li class=\"listBlock mediaThumb\"><a href=\"media/").append(slug).append("-photo.").append(mediaId)
+        .append("\" class=\"thumbnailLink\"><img src=\"thumb/").append(mediaId).append(".jpg\"></a></li>\n");
+    }
+    html.append("</ol>\n");
+    if (page * PAGE_SIZE < numImages) {
+      html.append("<div class=\"PageNav\"><a href=\"tags/").append(slug).append("/page-").append(page + 1)
+        .append("\" class=\"text\">Next &gt;</a></div>\n");
+    }
+    return html.append("</body></html>").toString();
+  }
+
+  private String galleryPage(final int mediaId) {
+    final boolean popular = (mediaId & POPULAR) != 0;
+    final int index = popular ? mediaId & 4095 : mediaId & 63;
+    final int variant = popular ? 0 : (mediaId >>> 6) & 1;
+    final int species = popular ? 0 : (mediaId >>> 7) & 15;
+    final int genus = popular ? (mediaId & ~POPULAR) >>> 12 : mediaId >>> 11;
+    final String slug = slug(genus, species, variant);
+    final boolean sexing = new Random(mediaId).nextInt(20) == 0;
+    return "<html><body><div class=\"imageContainer\"><img src=\"media/" + slug + "-photo." + mediaId + "/full\"></div>\n"
+      + "<ul class=\"tagList\"><li><a href=\"tags/" + slug + "/\" class=\"tag\">" + slug + "</a></li>"
+      + (sexing ? "<li><a href=\"tags/sexing/\" class=\"tag\">sexing</a></li>" : "")
+      + "<li><a href=\"tags/photo-" + index + "/\" class=\"tag\">photo</a></li></ul></body></html>";
+  }
+
+  /**
+   * Make a small JPEG of random blocks, so images differ in content and not
+   *   just bytes, padded with comment segments to the configured size.
+   */
+  private byte[] image(final int mediaId, final int width, final int height) throws IOException {
+    final Random random = new Random(mediaId);
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, (x / 8 + y / 8) % 2 == 0 ? random.nextInt() : 0x808080);
+      }
+    }
+    final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", jpeg);
+    final byte[] encoded = jpeg.toByteArray();
+
+    // comment segments go right after the start of image marker
+    final ByteArrayOutputStream padded = new ByteArrayOutputStream(Math.max(imageBytes, encoded.length));
+    padded.write(encoded, 0, 2);
+    int padding = imageBytes - encoded.length;
+    while (padding > 4) {
+      final int length = Math.min(65535, padding - 2);
+      padded.write(0xFF);
+      padded.write(0xFE);
+      padded.write(length >>> 8);
+      padded.write(length & 0xFF);
+      padded.write(new byte[length - 2], 0, length - 2);
+      padding -= length + 2;
+    }
+    padded.write(encoded, 2, encoded.length - 2);
+    return padded.toByteArray();
+  }
+
+  /**
+   * Break an image in one of the ways downloads go wrong.
+   */
+  private byte[] brokenImage(final int mediaId) throws IOException {
+    switch (mediaId / BROKEN_EVERY % 3) {
+      case 0:
+        return "<!DOCTYPE html><html><body>Temporarily unavailable</body></html>".getBytes(StandardCharsets.UTF_8);
+      case 1:
+        final byte[] image = image(mediaId, 80, 64);
+        return Arrays.copyOf(image, image.length / 2);
+      default:
+        return image(mediaId, 32, 24);
+    }
+  }
+
+  private static int numSpecies(final int genus) {
+    return 1 + new Random(genus).nextInt(MAX_SPECIES);
+  }
+
+  /**
+   * @return number of images in a name's tag, or -1 if it has no tag
+   */
+  private static int numImages(final int genus, final int species, final int variant) {
+    if (POPULAR_IMAGES > 0 && genus % POPULAR_EVERY == 0 && species == 0 && variant == 0) return POPULAR_IMAGES;
+    final Random random = new Random(((long) genus << 8) | (species << 1) | variant);
+    if (variant == 0) return random.nextInt(MAX_IMAGES + 1);
+    return random.nextInt(3) == 0 ? random.nextInt(MAX_SYNONYM_IMAGES + 1) : -1;
+  }
+
+  private static int mediaId(final int genus, final int species, final int variant, final int index) {
+    if (index > 63) return POPULAR | (genus << 12) | index;
+    return (genus << 11) | (species << 7) | (variant << 6) | index;
+  }
+
+  private static String slug(final int genus, final int species, final int variant) {
+    return (variant == 0 ? GENUS : SYNONYM_GENUS).toLowerCase() + genus + "-sp" + species;
+  }
+
+  private static Response html(final String html) {
+    return new Response(200, "text/html; charset=UTF-8", html.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Response notFound() {
+    return new Response(404, "text/html; charset=UTF-8", "<html><body>Not found</body></html>".getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,439 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.jsoup.helper.HttpConnection;
+import org.jsoup.nodes.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.Security;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one way the scraper talks HTTP, so every request to a host shares one
+ *   pool of kept alive connections instead of setting up TCP (and TLS) anew.
+ *
+ * The JVM only keeps 5 idle connections per host by default, so with dozens
+ *   of requests in flight most connections were thrown away after a single
+ *   response. Here up to -Dhttp.maxConnections (64) are kept, host names are
+ *   cached for -Dhttp.dnsCacheSeconds (300) instead of 30 seconds, and every
+ *   response is read to the end and closed so its connection goes back to
+ *   the pool. Pages are asked for gzipped; images aren't, since they don't
+ *   shrink and a range must match the bytes already on disk. Jsoup is only
+ *   used to parse what comes back.
+ *
+ * Every request has a deadline: connecting, each read and the whole
+ *   exchange are timed out (-Dhttp.connectTimeoutMillis, 10 s,
+ *   -Dhttp.readTimeoutMillis, 30 s, and -Dhttp.pageDeadlineMillis, 60 s, or
+ *   -Dhttp.imageDeadlineMillis, 5 min), so a stuck or trickling connection
+ *   can't hold a thread for the rest of the run. A body that ends short of
+ *   its Content-Length fails with an EOFException, which is retried like a
+ *   dropped connection, rather than passing as the whole thing.
+ *
+ * Redirects are followed here rather than by HttpURLConnection, which
+ *   won't follow one from http to https, and would hand back the redirect
+ *   itself as if it were the page or image. Up to -Dhttp.maxRedirects (10)
+ *   hops are followed, each with the same headers.
+ *
+ * The project builds for Java 8, whose HttpURLConnection speaks HTTP/1.1
+ *   only, so there's no HTTP/2 here.
+ */
+public final class Transport {
+
+  /**
+   * Timeouts for connecting and for each read, in millis.
+   */
+  private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("http.connectTimeoutMillis", 10_000);
+  private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("http.readTimeoutMillis", 30_000);
+
+  /**
+   * Time a whole exchange may take, headers and body, in millis.
+   */
+  private static final long PAGE_DEADLINE_MILLIS = Long.getLong("http.pageDeadlineMillis", 60_000L);
+  private static final long IMAGE_DEADLINE_MILLIS = Long.getLong("http.imageDeadlineMillis", 300_000L);
+
+  /**
+   * Max number of redirects to follow for one request.
+   */
+  private static final int MAX_REDIRECTS = Integer.getInteger("http.maxRedirects", 10);
+
+  /**
+   * Cuts off exchanges that are past their deadline.
+   */
+  private static final ScheduledExecutorService DEADLINES = newDeadlineTimer();
+
+  /**
+   * User agent to send (-Dhttp.userAgent), the same jsoup sent by default.
+   */
+  private static final String USER_AGENT = System.getProperty("http.userAgent", HttpConnection.DEFAULT_UA);
+
+  static {
+    // both are read once, when the JVM first needs them, so set them before any request
+    if (System.getProperty("http.maxConnections") == null) System.setProperty("http.maxConnections", "64");
+    if (Security.getProperty("networkaddress.cache.ttl") == null) {
+      Security.setProperty("networkaddress.cache.ttl", Integer.toString(Integer.getInteger("http.dnsCacheSeconds", 300)));
+    }
+  }
+
+  private Transport() { }
+
+  /**
+   * Thrown when an exchange is cut off at its deadline.
+   */
+  public static class DeadlineExceededException extends SocketTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    DeadlineExceededException(final String url, final long deadlineMillis) {
+      super("No complete response from " + url + " within " + deadlineMillis + " ms");
+    }
+  }
+
+  /**
+   * Thrown when an exchange is cut off because the request was called off,
+   *   which says nothing about the host.
+   */
+  public static class CancelledException extends InterruptedIOException {
+    private static final long serialVersionUID = 1L;
+
+    CancelledException(final String url) {
+      super("Request to " + url + " was called off");
+    }
+  }
+
+  /**
+   * Lets a request made on another thread be called off, i.e. the loser of a
+   *   hedge, cutting off the exchange it has open so its connection and its
+   *   host's permit are let go of right away.
+   */
+  static final class Cancellation {
+    private Response response;
+    private boolean cancelled;
+
+    /**
+     * Call the request off.
+     */
+    synchronized void cancel() {
+      cancelled = true;
+      if (response != null) response.cancel();
+    }
+
+    /**
+     * Note an exchange the request opens.
+     * @param url of the exchange
+     * @param opened the exchange
+     * @throws CancelledException if the request was already called off
+     */
+    private synchronized void open(final String url, final Response opened) throws CancelledException {
+      if (cancelled) throw new CancelledException(url);
+      response = opened;
+    }
+  }
+
+  /**
+   * Cancellation of the request being made on each thread, if it can be called off.
+   */
+  static final ThreadLocal<Cancellation> CANCELLATION = new ThreadLocal<>();
+
+  /**
+   * A response, with its body not read yet. Close it when done, so its
+   *   connection can be used again.
+   */
+  public static final class Response implements Closeable {
+    private final HttpURLConnection connection;
+    private final long deadlineMillis;
+    private final ScheduledFuture<?> deadline;
+    private int statusCode;
+    private InputStream body;
+    private byte[] bytes;
+    private boolean finished;
+    private boolean expired;
+    private boolean cancelled;
+
+    private Response(final HttpURLConnection connection, final long deadlineMillis) {
+      this.connection = connection;
+      this.deadlineMillis = deadlineMillis;
+      this.deadline = DEADLINES.schedule(this::expire, deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return status of the response
+     */
+    public int statusCode() { return statusCode; }
+
+    /**
+     * @param name of a header
+     * @return the header's value, or null if it wasn't sent
+     */
+    public String header(final String name) { return connection.getHeaderField(name); }
+
+    /**
+     * @return content type of the response, or null
+     */
+    public String contentType() { return connection.getContentType(); }
+
+    /**
+     * @return length of the body as sent, or -1 if it's not known up front
+     */
+    public long contentLength() { return connection.getContentLengthLong(); }
+
+    /**
+     * @return charset named by the content type, or null
+     */
+    public String charset() {
+      final String contentType = contentType();
+      if (contentType == null) return null;
+      for (String parameter : contentType.split(";")) {
+        final String[] nameAndValue = parameter.trim().split("=", 2);
+        if (nameAndValue.length == 2 && nameAndValue[0].trim().equalsIgnoreCase("charset")) {
+          return nameAndValue[1].trim().replace("\"", "").replace("'", "");
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return URL the response came from, after any redirects
+     */
+    public String url() { return connection.getURL().toString(); }
+
+    /**
+     * @return the body, decompressed if it was gzipped (again from the start, if it was read as bytes)
+     * @throws IOException if the body can't be read
+     */
+    public InputStream bodyStream() throws IOException {
+      if (bytes != null) return new ByteArrayInputStream(bytes);
+      if (body != null) return body;
+      InputStream raw = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      if (raw == null || statusCode == 204 || statusCode == 304) {
+        finish();
+        raw = new ByteArrayInputStream(new byte[0]);
+      } else {
+        raw = new DeadlineStream(raw);
+        if ("gzip".equalsIgnoreCase(header("Content-Encoding"))) raw = new GZIPInputStream(raw);
+      }
+      body = raw;
+      return body;
+    }
+
+    /**
+     * Read the whole body.
+     * @return the body
+     * @throws IOException if the body can't be read
+     */
+    public byte[] bodyAsBytes() throws IOException {
+      if (bytes != null) return bytes;
+      final int length = connection.getContentLength();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 16 * 1024);
+      final byte[] buffer = new byte[8 * 1024];
+      try (InputStream in = bodyStream()) {
+        int read;
+        while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+      }
+      bytes = out.toByteArray();
+      return bytes;
+    }
+
+    /**
+     * Parse the body as HTML.
+     * @return the page
+     * @throws IOException if the body can't be read
+     */
+    public Document parse() throws IOException {
+      return Jsoup.parse(new ByteArrayInputStream(bodyAsBytes()), charset(), url());
+    }
+
+    /**
+     * Close the body. The JVM reads what's left of a small body in the
+     *   background and keeps the connection; a large one costs the connection.
+     */
+    @Override
+    public void close() {
+      try {
+        bodyStream().close();
+      } catch (IOException e) {
+        connection.disconnect();
+      } finally {
+        finish();
+      }
+    }
+
+    /**
+     * Stop the deadline, once the body is read or given up on.
+     */
+    private synchronized void finish() {
+      finished = true;
+      deadline.cancel(false);
+    }
+
+    /**
+     * Cut the exchange off, unless it's done.
+     */
+    private synchronized void expire() {
+      if (finished) return;
+      expired = true;
+      connection.disconnect();
+    }
+
+    /**
+     * Cut the exchange off because the request was called off, unless it's done.
+     */
+    private synchronized void cancel() {
+      if (finished) return;
+      cancelled = true;
+      connection.disconnect();
+    }
+
+    /**
+     * @param e an exchange failed with
+     * @return the failure, as a deadline exceeded or cancellation if that's what caused it
+     */
+    private synchronized IOException failure(final IOException e) {
+      if (cancelled) {
+        final IOException cancellation = new CancelledException(connection.getURL().toString());
+        cancellation.initCause(e);
+        return cancellation;
+      }
+      if (!expired) return e;
+      final IOException deadlineExceeded = new DeadlineExceededException(connection.getURL().toString(), deadlineMillis);
+      deadlineExceeded.initCause(e);
+      return deadlineExceeded;
+    }
+
+    /**
+     * Body that stops the deadline when it ends, and reports being cut off as such.
+     *   HttpURLConnection may report a dropped connection as the end of the
+     *   body, so a body that ends short of its Content-Length fails too.
+     */
+    private class DeadlineStream extends FilterInputStream {
+      private long received;
+
+      DeadlineStream(final InputStream in) { super(in); }
+
+      @Override
+      public int read() throws IOException {
+        try {
+          final int read = super.read();
+          if (read < 0) ended();
+          else received++;
+          return read;
+        } catch (IOException e) {
+          throw failure(e);
+        }
+      }
+
+      @Override
+      public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        try {
+          final int read = super.read(buffer, offset, length);
+          if (read < 0) ended();
+          else received += read;
+          return read;
+        } catch (IOException e) {
+          throw failure(e);
+        }
+      }
+
+      /**
+       * Stop the deadline at the end of the body, unless the body was cut short.
+       * @throws EOFException if fewer bytes came than were sent
+       */
+      private void ended() throws EOFException {
+        finish();
+        final long expected = contentLength();
+        if (expected >= 0 && received < expected) {
+          throw new EOFException("Body of " + url() + " cut short after " + received + " of " + expected + " bytes");
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          finish();
+        }
+      }
+    }
+  }
+
+  /**
+   * Make a request, following any redirects.
+   * @param url to get
+   * @param headers to send along
+   * @param page whether a page is asked for, which is gzipped and due sooner, rather than an image
+   * @return the response, whatever its status other than a redirect
+   * @throws IOException if there is no response, or a redirect leads nowhere or goes on too long
+   */
+  public static Response get(final String url, final Map<String, String> headers, final boolean page) throws IOException {
+    String location = url;
+    for (int hop = 0; ; hop++) {
+      final Response response = exchange(location, headers, page);
+      if (!isRedirect(response.statusCode())) return response;
+      final String next = response.header("Location");
+      response.close();
+      if (next == null) throw new HttpStatusException("Redirect without a location", response.statusCode(), location);
+      if (hop >= MAX_REDIRECTS) throw new IOException("More than " + MAX_REDIRECTS + " redirects fetching " + url);
+      location = new URL(new URL(location), next).toString();
+    }
+  }
+
+  /**
+   * @param status of a response
+   * @return true if it sends us elsewhere
+   */
+  private static boolean isRedirect(final int status) {
+    return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+  }
+
+  /**
+   * Make a single exchange, without following a redirect.
+   * @param url to get
+   * @param headers to send along
+   * @param page whether a page is asked for
+   * @return the response, whatever its status
+   * @throws IOException if there is no response
+   */
+  private static Response exchange(final String url, final Map<String, String> headers, final boolean page) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+    connection.setRequestProperty("User-Agent", USER_AGENT);
+    connection.setRequestProperty("Accept-Encoding", page ? "gzip" : "identity");
+    for (Map.Entry<String, String> header : headers.entrySet()) connection.setRequestProperty(header.getKey(), header.getValue());
+    final Response response = new Response(connection, page ? PAGE_DEADLINE_MILLIS : IMAGE_DEADLINE_MILLIS);
+    try {
+      final Cancellation cancellation = CANCELLATION.get();
+      if (cancellation != null) cancellation.open(url, response);
+      response.statusCode = connection.getResponseCode();
+      return response;
+    } catch (IOException e) {
+      response.finish();
+      connection.disconnect();
+      throw response.failure(e);
+    }
+  }
+
+  private static ScheduledExecutorService newDeadlineTimer() {
+    final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+      new ThreadFactoryBuilder().setNameFormat("Deadline Thread %d").setDaemon(true).build());
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
+}
@@ -0,0 +1,80 @@
+package com.razzymcsnazzy.exoticsimagescraper.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two buckets (1 us, 2 us, 4 us, ...).
+ * Recording is a couple of atomic adds, so it can sit on every request.
+ * Percentiles are accurate to within a factor of two, which is plenty to
+ *   tell which stage is the bottleneck.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Number of buckets; the last one holds everything above ~36 minutes.
+   */
+  private static final int BUCKETS = 32;
+
+  /**
+   * Number of samples per bucket. Bucket i holds latencies below 2^i micros.
+   */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Number and sum of all samples.
+   */
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Record a sample.
+   * @param nanos the sample took
+   */
+  public void record(final long nanos) {
+    final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    count.increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Record a sample that started at a given time and ends now.
+   * @param startNanos from System.nanoTime()
+   */
+  public void recordSince(final long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return number of samples
+   */
+  public long getCount() { return count.sum(); }
+
+  /**
+   * @return mean latency in millis, or 0 without samples
+   */
+  public double getMeanMillis() {
+    final long n = count.sum();
+    return n == 0 ? 0 : sumNanos.sum() / (n * 1e6);
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return upper bound of the bucket holding the percentile, in millis, or 0 without samples
+   */
+  public double getPercentileMillis(final double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) total += buckets.get(i);
+    if (total == 0) return 0;
+
+    final long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) return (1L << i) / 1000.0;
+    }
+    return (1L << (BUCKETS - 1)) / 1000.0;
+  }
+}
@@ -0,0 +1,236 @@
+package com.razzymcsnazzy.exoticsimagescraper.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide scraper instrumentation: latency histograms per stage,
+ *   counters, HTTP status counts and gauges (i.e. queue depths).
+ *
+ * Exposed over JMX while running, and written as a JSON summary at the
+ *   end of a run. Everything is recorded with lock-free adders, so it's
+ *   cheap enough to sit on every request.
+ */
+public class ScraperMetrics implements ScraperMetricsMXBean {
+
+  /**
+   * Stage names.
+   */
+  public static final String FETCH = "fetch";
+  public static final String PARSE = "parse";
+  public static final String DOWNLOAD = "download";
+  public static final String DISK_WRITE = "diskWrite";
+
+  /**
+   * Counter names.
+   */
+  public static final String BYTES_DOWNLOADED = "bytesDownloaded";
+  public static final String RETRIES = "retries";
+  public static final String QUARANTINED = "quarantined";
+
+  /**
+   * The process' metrics.
+   */
+  private static final ScraperMetrics INSTANCE = new ScraperMetrics();
+
+  /**
+   * When the metrics were created.
+   */
+  private final long startNanos = System.nanoTime();
+
+  private final ConcurrentMap<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  private ScraperMetrics() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+        this, new ObjectName("com.razzymcsnazzy.exoticsimagescraper:type=ScraperMetrics"));
+    } catch (JMException e) {
+      System.err.println("Could not register scraper metrics with JMX: " + e);
+    }
+  }
+
+  /**
+   * @return the process' metrics
+   */
+  public static ScraperMetrics get() { return INSTANCE; }
+
+  /**
+   * @param stage to get histogram of
+   * @return latency histogram of the stage
+   */
+  public LatencyHistogram stage(final String stage) {
+    return stages.computeIfAbsent(stage, name -> new LatencyHistogram());
+  }
+
+  /**
+   * Add to a counter.
+   * @param counter to add to
+   * @param amount to add
+   */
+  public void count(final String counter, final long amount) {
+    counters.computeIfAbsent(counter, name -> new LongAdder()).add(amount);
+  }
+
+  /**
+   * Count a response.
+   * @param status of the response
+   */
+  public void status(final int status) {
+    statusCounts.computeIfAbsent(status, code -> new LongAdder()).increment();
+  }
+
+  /**
+   * Register a gauge, replacing any gauge of the same name.
+   * @param gauge name
+   * @param value to read when the gauge is queried
+   */
+  public void gauge(final String gauge, final LongSupplier value) {
+    gauges.put(gauge, value);
+  }
+
+  @Override
+  public double getUptimeSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  @Override
+  public double getDownloadBytesPerSecond() {
+    final LongAdder bytes = counters.get(BYTES_DOWNLOADED);
+    return bytes == null ? 0 : bytes.sum() / Math.max(1e-9, getUptimeSeconds());
+  }
+
+  @Override
+  public double getFetchesPerSecond() {
+    return stage(FETCH).getCount() / Math.max(1e-9, getUptimeSeconds());
+  }
+
+  @Override
+  public double getDownloadsPerSecond() {
+    return stage(DOWNLOAD).getCount() / Math.max(1e-9, getUptimeSeconds());
+  }
+
+  @Override
+  public long getPeakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    final Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> counter : counters.entrySet()) values.put(counter.getKey(), counter.getValue().sum());
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getStatusCounts() {
+    final Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<Integer, LongAdder> status : statusCounts.entrySet()) values.put(status.getKey().toString(), status.getValue().sum());
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getGauges() {
+    final Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) values.put(gauge.getKey(), gauge.getValue().getAsLong());
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getStageCounts() {
+    final Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) values.put(stage.getKey(), stage.getValue().getCount());
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getStageP50Millis() { return percentiles(50); }
+
+  @Override
+  public Map<String, Double> getStageP95Millis() { return percentiles(95); }
+
+  @Override
+  public Map<String, Double> getStageP99Millis() { return percentiles(99); }
+
+  /**
+   * Write all metrics as JSON.
+   * @param file to write to
+   */
+  public void writeSummary(final File file) {
+    final StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"uptimeSeconds\": ").append(getUptimeSeconds()).append(",\n");
+    json.append("  \"downloadBytesPerSecond\": ").append(getDownloadBytesPerSecond()).append(",\n");
+    json.append("  \"fetchesPerSecond\": ").append(getFetchesPerSecond()).append(",\n");
+    json.append("  \"downloadsPerSecond\": ").append(getDownloadsPerSecond()).append(",\n");
+    json.append("  \"peakHeapBytes\": ").append(getPeakHeapBytes()).append(",\n");
+    json.append("  \"counters\": ").append(toJson(getCounters())).append(",\n");
+    json.append("  \"statusCounts\": ").append(toJson(getStatusCounts())).append(",\n");
+    json.append("  \"gauges\": ").append(toJson(getGauges())).append(",\n");
+    json.append("  \"stages\": {");
+    final Map<String, LatencyHistogram> sorted = new TreeMap<>(stages);
+    boolean first = true;
+    for (Map.Entry<String, LatencyHistogram> stage : sorted.entrySet()) {
+      final LatencyHistogram histogram = stage.getValue();
+      json.append(first ? "\n" : ",\n").append("    \"").append(stage.getKey()).append("\": {")
+        .append("\"count\": ").append(histogram.getCount())
+        .append(", \"meanMillis\": ").append(histogram.getMeanMillis())
+        .append(", \"p50Millis\": ").append(histogram.getPercentileMillis(50))
+        .append(", \"p95Millis\": ").append(histogram.getPercentileMillis(95))
+        .append(", \"p99Millis\": ").append(histogram.getPercentileMillis(99))
+        .append("}");
+      first = false;
+    }
+    json.append("\n  }\n}\n");
+
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      out.write(json.toString());
+      System.out.println("Wrote metrics to " + file.getPath());
+    } catch (IOException e) {
+      System.err.println("Error writing metrics to " + file.getPath() + ": " + e);
+    }
+  }
+
+  /**
+   * @param percentile to get
+   * @return the percentile of each stage, in millis
+   */
+  private Map<String, Double> percentiles(final double percentile) {
+    final Map<String, Double> values = new TreeMap<>();
+    for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) values.put(stage.getKey(), stage.getValue().getPercentileMillis(percentile));
+    return values;
+  }
+
+  /**
+   * @param values to convert
+   * @return the values as a JSON object
+   */
+  private static String toJson(final Map<String, ?> values) {
+    final StringBuilder json = new StringBuilder("{");
+    for (Map.Entry<String, ?> value : values.entrySet()) {
+      if (json.length() > 1) json.append(", ");
+      json.append('"').append(value.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\": ").append(value.getValue());
+    }
+    return json.append('}').toString();
+  }
+}
@@ -0,0 +1,70 @@
+package com.razzymcsnazzy.exoticsimagescraper.metrics;
+
+import java.util.Map;
+
+/**
+ * Scraper metrics as exposed over JMX, under
+ *   com.razzymcsnazzy.exoticsimagescraper:type=ScraperMetrics.
+ */
+public interface ScraperMetricsMXBean {
+
+  /**
+   * @return seconds since the metrics were created
+   */
+  double getUptimeSeconds();
+
+  /**
+   * @return bytes of images downloaded per second since start
+   */
+  double getDownloadBytesPerSecond();
+
+  /**
+   * @return pages fetched per second since start
+   */
+  double getFetchesPerSecond();
+
+  /**
+   * @return images downloaded per second since start
+   */
+  double getDownloadsPerSecond();
+
+  /**
+   * @return highest heap use seen, summed over the heap's memory pools
+   */
+  long getPeakHeapBytes();
+
+  /**
+   * @return counters by name (i.e. retries, bytes downloaded, cache hits)
+   */
+  Map<String, Long> getCounters();
+
+  /**
+   * @return number of responses per HTTP status
+   */
+  Map<String, Long> getStatusCounts();
+
+  /**
+   * @return current value of each gauge (i.e. queue depths, active threads, host limits)
+   */
+  Map<String, Long> getGauges();
+
+  /**
+   * @return number of samples per stage
+   */
+  Map<String, Long> getStageCounts();
+
+  /**
+   * @return median latency per stage, in millis
+   */
+  Map<String, Double> getStageP50Millis();
+
+  /**
+   * @return 95th percentile latency per stage, in millis
+   */
+  Map<String, Double> getStageP95Millis();
+
+  /**
+   * @return 99th percentile latency per stage, in millis
+   */
+  Map<String, Double> getStageP99Millis();
+}
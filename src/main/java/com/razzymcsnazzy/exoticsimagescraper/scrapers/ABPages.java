@@ -0,0 +1,261 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extraction of what the crawl needs from Arachnoboards pages: the thumbnails
+ *   and next page link of a tag listing page, and the tags and image of a
+ *   gallery page. Kept apart from the workers so it can be benchmarked
+ *   against saved pages without any network in the way.
+ *
+ * Pages are scanned as they come in by an HtmlScanner, which stops reading
+ *   as soon as it has everything: a gallery page after its tags, a listing
+ *   page after its thumbnails, if the next page link came before them. When
+ *   a page doesn't look the way the scan expects, it's parsed into a DOM
+ *   after all. With -Dscraper.ab.extraction=dom pages are always parsed.
+ */
+final class ABPages {
+
+  /**
+   * Whether to scan pages rather than parse them.
+   */
+  private static final boolean STREAMING = !"dom".equals(System.getProperty("scraper.ab.extraction", "streaming"));
+
+  /**
+   * What the crawl needs from a tag listing page.
+   */
+  static final class Listing {
+    final List<String> thumbnailHrefs;
+    final String nextPagePath;
+
+    Listing(final List<String> thumbnailHrefs, final String nextPagePath) {
+      this.thumbnailHrefs = thumbnailHrefs;
+      this.nextPagePath = nextPagePath;
+    }
+  }
+
+  /**
+   * What the crawl needs from a gallery page.
+   */
+  static final class Gallery {
+    final List<String> tagHrefs;
+    final String imagePath;
+
+    Gallery(final List<String> tagHrefs, final String imagePath) {
+      this.tagHrefs = tagHrefs;
+      this.imagePath = imagePath;
+    }
+  }
+
+  private ABPages() { }
+
+  /**
+   * Read a tag listing page.
+   * @param body of the page
+   * @param charset of the page, or null if unknown
+   * @param baseUri of the page
+   * @return what's on the page
+   * @throws IOException if the page can't be read
+   */
+  static Listing readListing(final InputStream body, final String charset, final String baseUri) throws IOException {
+    if (!STREAMING || !HtmlScanner.supports(charset)) return listing(Jsoup.parse(body, charset, baseUri));
+    final HtmlScanner html = new HtmlScanner(body, charset, "next");
+    try {
+      final Listing listing = scanListing(html);
+      if (listing != null) return listing;
+      ScraperMetrics.get().count("abPages.domFallbacks", 1);
+      return listing(html.parse(baseUri));
+    } finally {
+      html.release();
+    }
+  }
+
+  /**
+   * Read a gallery page.
+   * @param body of the page
+   * @param charset of the page, or null if unknown
+   * @param baseUri of the page
+   * @return what's on the page
+   * @throws IOException if the page can't be read
+   */
+  static Gallery readGallery(final InputStream body, final String charset, final String baseUri) throws IOException {
+    if (!STREAMING || !HtmlScanner.supports(charset)) return gallery(Jsoup.parse(body, charset, baseUri));
+    final HtmlScanner html = new HtmlScanner(body, charset, null);
+    try {
+      final Gallery gallery = scanGallery(html);
+      if (gallery != null) return gallery;
+      ScraperMetrics.get().count("abPages.domFallbacks", 1);
+      return gallery(html.parse(baseUri));
+    } finally {
+      html.release();
+    }
+  }
+
+  /**
+   * @param listingPage parsed tag listing page
+   * @return what's on the page
+   */
+  static Listing listing(final Document listingPage) {
+    return new Listing(thumbnailHrefs(listingPage), nextPagePath(listingPage));
+  }
+
+  /**
+   * @param galleryPage parsed gallery page
+   * @return what's on the page
+   */
+  static Gallery gallery(final Document galleryPage) {
+    return new Gallery(tagHrefs(galleryPage), imagePath(galleryPage));
+  }
+
+  /**
+   * Scan a tag listing page for the same things thumbnailHrefs and nextPagePath find.
+   * @param html scanner of the page
+   * @return what's on the page, or null if it has to be parsed to tell
+   * @throws IOException if the page can't be read
+   */
+  static Listing scanListing(final HtmlScanner html) throws IOException {
+    final List<String> hrefs = new ArrayList<>();
+    String nextPage = null;
+    boolean thumbnailOpen = false;
+    String listName = null;
+    int listDepth = 0;
+
+    while (html.next()) {
+
+      // the first element with "next" in its own text, like getElementsContainingOwnText
+      if (nextPage == null && html.textMatched()) {
+        if (!html.previousOpens()) return null;
+        final String href = html.previousAttr("href");
+        nextPage = (href == null ? "" : href) + "/";
+      }
+
+      if (html.isEndTag()) {
+        if (listName != null && html.nameIs(listName) && --listDepth == 0 && nextPage != null) break;
+      } else if (html.hasClass("listBlock mediaThumb")) {
+        if (listName == null) {
+          if (!html.previousOpens()) return null;
+          listName = html.previousName();
+          listDepth = 1;
+        }
+        if (thumbnailOpen) return null;
+        thumbnailOpen = true;
+      } else if (thumbnailOpen && html.nameIs("a")) {
+        final String href = html.attr("href");
+        hrefs.add(href == null ? "" : href);
+        thumbnailOpen = false;
+      } else if (listName != null && html.opens() && html.nameIs(listName)) {
+        listDepth++;
+      }
+    }
+    return thumbnailOpen ? null : new Listing(hrefs, nextPage);
+  }
+
+  /**
+   * Scan a gallery page for the same things tagHrefs and imagePath find.
+   * @param html scanner of the page
+   * @return what's on the page, or null if it has to be parsed to tell
+   * @throws IOException if the page can't be read
+   */
+  static Gallery scanGallery(final HtmlScanner html) throws IOException {
+    List<String> tags = null;
+    int tagDepth = 0;
+    boolean tagOpen = false;
+    boolean inImageContainer = false;
+    String imagePath = null;
+
+    while (html.next()) {
+
+      // first img in the first imageContainer
+      if (imagePath == null && !html.isEndTag()) {
+        if (inImageContainer && html.nameIs("img")) {
+          final String src = html.attr("src");
+          imagePath = src == null ? "" : src;
+        } else if (!inImageContainer && html.hasClass("imageContainer")) {
+          inImageContainer = true;
+        }
+      }
+
+      // first element child of each child of the first tagList
+      if (tags == null) {
+        if (html.hasClass("tagList")) {
+          tags = new ArrayList<>();
+          tagDepth = html.opens() ? 1 : 0;
+        }
+      } else if (tagDepth > 0) {
+        if (html.isEndTag()) {
+          tagDepth--;
+          if (tagDepth == 1) tagOpen = false;
+        } else {
+          if (tagDepth == 1) {
+            tagOpen = true;
+          } else if (tagDepth == 2 && tagOpen) {
+            final String href = html.attr("href");
+            if (href != null) tags.add(href);
+            tagOpen = false;
+          }
+          if (html.opens()) tagDepth++;
+        }
+      }
+
+      if (tags != null && tagDepth == 0 && imagePath != null) return new Gallery(tags, imagePath);
+    }
+    return null;
+  }
+
+  /**
+   * Get the gallery page of each thumbnail on a tag listing page.
+   * @param listingPage to extract from
+   * @return paths of the gallery pages
+   */
+  static List<String> thumbnailHrefs(final Document listingPage) {
+    final Elements thumbnails = listingPage.getElementsByClass("listBlock mediaThumb");
+    final List<String> hrefs = new ArrayList<>(thumbnails.size());
+    for (Element thumbnail : thumbnails) {
+      hrefs.add(thumbnail.getElementsByTag("a").get(0).attr("href"));
+    }
+    return hrefs;
+  }
+
+  /**
+   * If a tag listing page has any more pages following it, get the path of the next page.
+   * @param listingPage the current page
+   * @return path of the next page, or null if there is none
+   */
+  static String nextPagePath(final Document listingPage) {
+    final Elements nextPage = listingPage.getElementsContainingOwnText("Next");
+    return nextPage.isEmpty() ? null : nextPage.get(0).attr("href") + "/";
+  }
+
+  /**
+   * Get the tags of a gallery page.
+   * @param galleryPage to extract from
+   * @return hrefs of the tags, in page order
+   */
+  static List<String> tagHrefs(final Document galleryPage) {
+    final Elements imageTags = galleryPage.getElementsByClass("tagList").get(0).children();
+    final List<String> tags = new ArrayList<>(imageTags.size());
+    for (Element imageTag : imageTags) {
+      if (imageTag.childNodeSize() > 0 && imageTag.child(0).hasAttr("href")) tags.add(imageTag.child(0).attr("href"));
+    }
+    return tags;
+  }
+
+  /**
+   * Get the path of the full size image on a gallery page.
+   * @param galleryPage to extract from
+   * @return path of the image
+   */
+  static String imagePath(final Document galleryPage) {
+    final Element imageContainer = galleryPage.getElementsByClass("imageContainer").first();
+    return imageContainer.getElementsByTag("img").first().attr("src");
+  }
+}
@@ -1,124 +1,356 @@
 package com.razzymcsnazzy.exoticsimagescraper.scrapers;
 
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static java.util.Objects.isNull;
 
 /**
  * Worker used for scraping images off Arachnoboards tags.
+ *
+ * The worker itself only walks the tag listing pages. Each thumbnail's
+ *   gallery page and image are handled by the stages of a CrawlPipeline,
+ *   and the species is done once the last of them has finished.
+ *
+ * A name's listing pages are walked by one or more ListingWalks: a tag that
+ *   had more than -Dscraper.schedule.splitPages (10) pages in the last run
+ *   is split into walks of that many pages each, which any listing thread
+ *   can pick up, so one large tag doesn't hold up the end of the crawl.
  */
 public class ABTagsScrapeWorker extends ScrapeWorker {
 
+  /**
+   * Root URL of Arachnoboards (-Dscraper.ab.root, i.e. to crawl a ReplayServer instead).
+   */
+  private static final String ROOT = System.getProperty("scraper.ab.root", "http://arachnoboards.com/");
+
+  /**
+   * Number of listing pages per walk of a large tag (0 to never split).
+   */
+  private static final int SPLIT_PAGES = Integer.getInteger("scraper.schedule.splitPages", 10);
+
+  /**
+   * Number of unfinished tasks for this species. Starts at the number of
+   *   listing walks, so it can't reach zero before those are done.
+   */
+  private final AtomicInteger pendingTasks = new AtomicInteger();
+
   /**
    * Scrape all images off AB in a tag for a species.
    * @param speciesLabel to scrape (scientific name)
    * @param speciesNames to scrape (scientific name and synonyms)
-   * @param speciesToShutdownOn to shut down scraper on
+   * @param context shared by all workers of the crawl
    */
-  ABTagsScrapeWorker(final String speciesLabel, final List<String> speciesNames, final String speciesToShutdownOn) {
-    super("http://arachnoboards.com/", speciesLabel, speciesNames, speciesToShutdownOn);
+  ABTagsScrapeWorker(final String speciesLabel, final List<String> speciesNames, final CrawlContext context) {
+    super(ROOT, speciesLabel, speciesNames, context);
   }
 
   /**
-   * Scrape images.
+   * Walk all listing pages of the species in turn.
    */
   public void run() {
-    System.out.println("(" + Thread.currentThread().getName() + ") Scraping " + speciesLabel);
+    for (ListingWalk walk : walks(false)) walk.run();
+  }
 
-    // scrape each name
+  /**
+   * Plan the walks of the species' listing pages. Names resumed from the
+   *   journal are walked again from every page left off at.
+   * @param split whether to split large tags into several walks
+   * @return the walks, which may run in any order and at the same time
+   */
+  List<ListingWalk> walks(final boolean split) {
+    final List<ListingWalk> walks = new ArrayList<>();
     for (String species : speciesNames) {
-      imagesPerName.put(species, 0);
-      Document currentPage = getABTagsPage(species);
-
-      // scrape each tags page
-      while (!isNull(currentPage)) {
-        final Elements thumbnails = currentPage.getElementsByClass("listBlock mediaThumb");
-
-        // scrape image corresponding to each tag
-        for (Element thumbnail : thumbnails) {
-          final Document thumbnailGalleryPage = getPage(thumbnail.getElementsByTag("a").get(0).attr("href") + "/");
-
-          // if page contains tag sexing, skip (not interested in ventral or exuviae images)
-          // can also exclude other tags here like enclosure, but many enclosure pics also contain a T
-          final Elements imageTags = thumbnailGalleryPage.getElementsByClass("tagList").get(0).children();
-          boolean skip = false;
-          for (Element imageTag : imageTags) {
-            if (imageTag.childNodeSize() > 0 && imageTag.child(0).hasAttr("href")) {
-              final String tagValue = imageTag.child(0).attr("href");
-              if (tagValue.contains("sexing")) {
-                skip = true;
-                break;
-              }
-            }
-          }
-          if (skip) continue;
-
-          // get image
-          final Element imageContainer = thumbnailGalleryPage
-            .getElementsByClass("imageContainer")
-            .first();
-          final String imagePath = imageContainer.getElementsByTag("img").first().attr("src");
-
-          // download, if not already present
-          final Boolean downloaded = downloadImage(imageDirExisting.getPath(), imageDirNew.getPath(), imagePath);
-          if (downloaded) {
-            numImages++;
-            imagesPerName.put(species, imagesPerName.get(species) + 1);
-          }
+      imagesPerName.put(species, new AtomicInteger());
+
+      // pick up where an earlier run left off
+      final Set<String> resumePages = context.journal.resumePages(species, pagePath(species, 1));
+      if (!isNull(resumePages)) {
+        context.costs.resumed(species);
+        if (resumePages.isEmpty()) walks.add(new ListingWalk(species, null, null, 0, true));
+        boolean requeue = true;
+        for (String page : resumePages) {
+          walks.add(new ListingWalk(species, page, null, Math.max(1, estimatedPages(species) / resumePages.size()), requeue));
+          requeue = false;
         }
+        continue;
+      }
 
-        // next page
-        currentPage = nextABPage(currentPage);
+      // otherwise in parts of SPLIT_PAGES pages, the last one walking on to the end
+      final int pages = estimatedPages(species);
+      final int parts = split && SPLIT_PAGES > 0 ? Math.max(1, (pages + SPLIT_PAGES - 1) / SPLIT_PAGES) : 1;
+      for (int part = 0; part < parts; part++) {
+        final boolean last = part == parts - 1;
+        walks.add(new ListingWalk(species,
+          pagePath(species, part * SPLIT_PAGES + 1),
+          last ? null : pagePath(species, (part + 1) * SPLIT_PAGES + 1),
+          last ? pages - part * SPLIT_PAGES : SPLIT_PAGES,
+          part == 0));
       }
     }
+    pendingTasks.addAndGet(walks.size());
+    return walks;
+  }
 
-    // delete directory, if there are no images
-    try {
-      if (imageDirExisting.exists() && Objects.requireNonNull(imageDirExisting.listFiles()).length == 0) Files.delete(imageDirExisting.toPath());
-    } catch (IOException e) {
-      System.err.println("Error deleting empty directory " + imageDirExisting.getPath() + ": " + e);
+  /**
+   * A walk over a name's listing pages, or a range of them, queueing every thumbnail.
+   */
+  final class ListingWalk implements Runnable {
+
+    /**
+     * Name whose tag is walked.
+     */
+    private final String name;
+
+    /**
+     * Path of the page to start at, or null to only re-queue unfinished items.
+     */
+    private final String from;
+
+    /**
+     * Path of the page to stop before (where the next walk starts), or null to walk to the end.
+     */
+    private final String until;
+
+    /**
+     * Number of pages the walk is expected to take.
+     */
+    private final int estimatedPages;
+
+    /**
+     * Whether to re-queue the name's items left unfinished by an earlier run.
+     */
+    private final boolean requeue;
+
+    private ListingWalk(final String name, final String from, final String until, final int estimatedPages, final boolean requeue) {
+      this.name = name;
+      this.from = from;
+      this.until = until;
+      this.estimatedPages = estimatedPages;
+      this.requeue = requeue;
+    }
+
+    /**
+     * @return number of pages the walk is expected to take
+     */
+    int getEstimatedPages() { return estimatedPages; }
+
+    public void run() {
+      System.out.println("(" + Thread.currentThread().getName() + ") Scraping " + name
+        + (isNull(from) || from.equals(pagePath(name, 1)) ? "" : " from " + from));
+
+      int pages = 0;
+      int items = 0;
+      boolean complete = false;
+      try {
+        if (requeue) for (String href : context.journal.unfinishedItems(name)) queueItem(name, href);
+        if (isNull(from)) return;
+
+        // a split off part that finds no first page is past the end of a tag that shrank
+        String page = from;
+        ABPages.Listing currentPage = context.isStopped() ? null : claimPage(page);
+        if (isNull(currentPage) && !context.isStopped()) complete = !from.equals(pagePath(name, 1));
+
+        // scrape each tags page, until done or the shard was taken over
+        while (!isNull(currentPage)) {
+          final List<String> hrefs = currentPage.thumbnailHrefs;
+          final String nextPage = currentPage.nextPagePath;
+          context.journal.listingPage(name, page, nextPage, hrefs);
+          pages++;
+          items += hrefs.size();
+
+          // hand gallery page of each thumbnail to the next stage
+          for (String href : hrefs) queueItem(name, href);
+
+          // next page, unless that's where another walk takes over
+          if (isNull(nextPage) || nextPage.equals(until) || context.journal.isWalked(name, nextPage)) {
+            complete = true;
+            break;
+          }
+          page = nextPage;
+          currentPage = context.isStopped() ? null : claimPage(page);
+        }
+      } catch (IOException e) {
+
+        // already reported; the walk isn't complete, so the journal resumes it
+        numFailed.incrementAndGet();
+      } catch (RuntimeException e) {
+        numFailed.incrementAndGet();
+        System.err.println("Error scraping tags of " + name + ": " + e);
+      } finally {
+        if (!isNull(from)) context.costs.walked(name, pages, items, complete);
+        taskDone();
+      }
     }
+  }
+
+  /**
+   * @param species name to estimate for
+   * @return number of listing pages the name's tag had in the last run, or a guess from the images we have
+   */
+  private int estimatedPages(final String species) {
+    final int pages = context.costs.pages(species);
+    if (pages >= 0) return Math.max(1, pages);
+    if (!species.equals(speciesLabel)) return 1;
+    return Math.max(1, (numExisting + context.costs.itemsPerPage() - 1) / context.costs.itemsPerPage());
+  }
 
-    // show progress
-    this.printProgress(speciesLabel, numImages, numExisting, imagesPerName);
-    ScrapeMaster.incrementNumSpecies();
+  /**
+   * Queue a gallery item we don't know yet, straight to the download stage
+   *   if its gallery page was scraped in an earlier run.
+   * @param species name whose tag the item was found under
+   * @param href of the item's gallery page
+   */
+  private void queueItem(final String species, final String href) {
+    if (context.manifest.contains(MediaManifest.mediaId(href))) return;
 
-    // set scraper shutdown flag on last species
-    if (speciesNames.get(speciesNames.size() - 1).equals(speciesToShutdownOn))
-      ScrapeMaster.shutdown();
+    final String imagePath = context.journal.galleryImage(href);
+    if (!isNull(imagePath)) {
+      final String label = context.journal.galleryLabel(href);
+      queueDownload(species, href, imagePath, isNull(label) ? speciesLabel : label, context.journal.galleryTags(href));
+    } else if (context.frontier.claim(urlOf(href + "/"))) {
+      submit(context.pipeline::submitGalleryPage, () -> scrapeGalleryPage(species, href));
+    }
   }
 
   /**
-   * Get an Arachnoboards tags page.
-   * @param species tag to get page of
-   * @return the page
+   * Queue an image for download, unless another worker already has.
+   * @param species name whose tag the image was found under
+   * @param href of the image's gallery page
+   * @param imagePath path of the image
+   * @param label to file the image under
+   * @param tags of the image's gallery page
    */
-  private Document getABTagsPage(final String species) {
-    return getPage("tags/" + species.replace(" ", "-").toLowerCase() + "/");
+  private void queueDownload(final String species, final String href, final String imagePath, final String label,
+                             final List<String> tags) {
+    if (!context.frontier.claim(urlOf(imagePath))) return;
+    submit(context.pipeline::submitDownload, () -> scrapeImage(species, href, imagePath, label, tags));
   }
 
   /**
-   * If a gallery page has any more pages following it, get the next page.
-   * @param page the current page
-   * @return the next page
+   * Hand one of this species' tasks to a stage of the pipeline. A task the
+   *   stage turns down never runs, so the species can't finish and fails
+   *   instead of being waited on forever; the caller counts the failure.
+   * @param stage to hand the task to
+   * @param task to run
    */
-  private Document nextABPage(final Document page) {
+  private void submit(final Consumer<Runnable> stage, final Runnable task) {
+    pendingTasks.incrementAndGet();
     try {
-      final Element nextPage = page.getElementsContainingOwnText("Next").get(0);
-      final String nextPageUrl = nextPage.attr("href") + "/";
-      return getPage(nextPageUrl);
+      stage.accept(task);
+    } catch (RejectedExecutionException e) {
+      pendingTasks.decrementAndGet();
+      completion.completeExceptionally(e);
+      throw e;
     }
+  }
 
-    // there is no next page
-    catch (IndexOutOfBoundsException e) {
-      return null;
+  /**
+   * Gallery stage: get a thumbnail's gallery page and queue its image for download.
+   * @param species name whose tag the thumbnail was found under
+   * @param href of the gallery page
+   */
+  private void scrapeGalleryPage(final String species, final String href) {
+    try {
+      if (context.isStopped()) return;
+      final ABPages.Gallery thumbnailGalleryPage = fetch(href + "/",
+        page -> ABPages.readGallery(page.bodyStream(), page.charset(), page.url()));
+
+      // a gallery page that's gone stays gone, so it's noted like one that's skipped
+      if (isNull(thumbnailGalleryPage)) {
+        context.manifest.add(MediaManifest.mediaId(href));
+        context.journal.galleryPage(href, null, speciesLabel, Collections.<String>emptyList());
+        return;
+      }
+
+      // if page contains tag sexing, skip (not interested in ventral or exuviae images)
+      // other tags like enclosure are kept with the image, to be left out by the view rules (see TagFilter)
+      final List<String> tagHrefs = thumbnailGalleryPage.tagHrefs;
+      final List<String> tags = new ArrayList<>(tagHrefs.size());
+      for (String tagHref : tagHrefs) tags.add(CrawlFrontier.tagSlug(tagHref));
+      for (String tagValue : tagHrefs) {
+        if (tagValue.contains("sexing")) {
+          context.manifest.add(MediaManifest.mediaId(href));
+          context.journal.galleryPage(href, null, speciesLabel, tags);
+          return;
+        }
+      }
+
+      // get image, filed under the same label whichever of its tags it was found under
+      final String imagePath = thumbnailGalleryPage.imagePath;
+      final String label = context.frontier.assignLabel(tagHrefs, speciesLabel);
+      context.journal.galleryPage(href, imagePath, label, tags);
+      queueDownload(species, href, imagePath, label, tags);
+    } catch (IOException e) {
+      numFailed.incrementAndGet();
+    } catch (RuntimeException e) {
+      numFailed.incrementAndGet();
+      System.err.println("Error scraping gallery page " + href + ": " + e);
+    } finally {
+      taskDone();
     }
   }
+
+  /**
+   * Download stage: download an image, if not already present.
+   * @param species name whose tag the image was found under
+   * @param href of the image's gallery page
+   * @param imagePath path of the image
+   * @param label to file the image under
+   * @param tags of the image's gallery page
+   */
+  private void scrapeImage(final String species, final String href, final String imagePath, final String label,
+                           final List<String> tags) {
+    try {
+      if (context.isStopped()) return;
+      final long bytes = downloadImage(label, imagePath, MediaManifest.mediaId(href), species, tags);
+      if (bytes == DUPLICATE || bytes == QUARANTINED || bytes == EXISTING) {
+        context.manifest.add(MediaManifest.mediaId(href));
+        context.journal.download(href);
+      } else if (bytes >= 0) {
+        context.manifest.add(MediaManifest.mediaId(href));
+        context.journal.download(href);
+        numImages.incrementAndGet();
+        numBytes.addAndGet(bytes);
+        imagesPerName.get(species).incrementAndGet();
+      }
+    } finally {
+      taskDone();
+    }
+  }
+
+  /**
+   * Mark one of this species' tasks as done, and wrap up the species
+   *   once it was the last one.
+   */
+  private void taskDone() {
+    if (pendingTasks.decrementAndGet() == 0) finish();
+  }
+
+  /**
+   * Get a listing page, unless another worker already has.
+   * @param path of the page
+   * @return the page, or null if it was already claimed or isn't there
+   * @throws IOException if the page couldn't be had
+   */
+  private ABPages.Listing claimPage(final String path) throws IOException {
+    if (!context.frontier.claim(urlOf(path))) return null;
+    return fetch(path, page -> ABPages.readListing(page.bodyStream(), page.charset(), page.url()));
+  }
+
+  /**
+   * @param species name to get tag of
+   * @param page number, starting at 1
+   * @return path of the page of the name's Arachnoboards tag
+   */
+  private static String pagePath(final String species, final int page) {
+    final String tag = "tags/" + CrawlFrontier.slug(species) + "/";
+    return page == 1 ? tag : tag + "page-" + page + "/";
+  }
 }
@@ -0,0 +1,67 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+/**
+ * Everything the workers of a crawl share.
+ */
+class CrawlContext {
+
+  /**
+   * Stages to hand gallery pages and downloads off to.
+   */
+  final CrawlPipeline pipeline;
+
+  /**
+   * Media that don't need to be scraped again.
+   */
+  final MediaManifest manifest;
+
+  /**
+   * Journal to record progress in and resume from.
+   */
+  final CrawlJournal journal;
+
+  /**
+   * Content and perceptual hashes of all images, to catch duplicates.
+   */
+  final ImageIndex imageIndex;
+
+  /**
+   * Tags and dimensions of every image saved, to filter on later.
+   */
+  final ImageTags imageTags;
+
+  /**
+   * URLs claimed so far, so none is fetched twice.
+   */
+  final CrawlFrontier frontier;
+
+  /**
+   * Size of each name's tag in earlier runs, and in this one.
+   */
+  final CrawlCosts costs;
+
+  /**
+   * Lease of the shard being crawled, or null if it's the whole crawl.
+   */
+  final FileLeases.Lease lease;
+
+  CrawlContext(final CrawlPipeline pipeline, final MediaManifest manifest, final CrawlJournal journal,
+               final ImageIndex imageIndex, final ImageTags imageTags, final CrawlFrontier frontier, final CrawlCosts costs,
+               final FileLeases.Lease lease) {
+    this.pipeline = pipeline;
+    this.manifest = manifest;
+    this.journal = journal;
+    this.imageIndex = imageIndex;
+    this.imageTags = imageTags;
+    this.frontier = frontier;
+    this.costs = costs;
+    this.lease = lease;
+  }
+
+  /**
+   * @return true if the crawl must stop, because another node took its shard over
+   */
+  boolean isStopped() {
+    return lease != null && lease.isLost();
+  }
+}
@@ -0,0 +1,150 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * How much there was to walk in each name's tag in earlier runs, so a crawl
+ *   can start on the largest tags first and split them up between threads,
+ *   instead of finding out about them once everything else is done.
+ *
+ * One tab separated line per name: the name, its number of listing pages
+ *   and its number of gallery items. The file is rewritten after every run.
+ *   A name that wasn't walked from start to end in a run (i.e. it was
+ *   resumed, or a page failed) keeps the counts of the run before.
+ */
+class CrawlCosts {
+
+  /**
+   * Number of thumbnails on a listing page, until a run has counted them.
+   */
+  private static final int DEFAULT_ITEMS_PER_PAGE = 20;
+
+  private final File file;
+
+  /**
+   * Listing pages and gallery items per name, as of the last run.
+   */
+  private final Map<String, int[]> previous = new HashMap<>();
+
+  /**
+   * Listing pages and gallery items per name walked in this run.
+   */
+  private final Map<String, int[]> current = new HashMap<>();
+
+  /**
+   * Names not walked completely in this run.
+   */
+  private final Set<String> incomplete = new HashSet<>();
+
+  /**
+   * Load the costs of earlier runs, if there are any.
+   * @param file to load from and save to
+   */
+  CrawlCosts(final File file) {
+    this.file = file;
+    if (!file.exists()) return;
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] fields = line.split("\t");
+        if (fields.length == 3) previous.put(fields[0], new int[] { Integer.parseInt(fields[1]), Integer.parseInt(fields[2]) });
+      }
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("Ignoring unreadable crawl costs " + file.getPath() + ": " + e.getMessage());
+      previous.clear();
+    }
+  }
+
+  /**
+   * @param name to look up
+   * @return number of listing pages of the name's tag in the last run, or -1 if it's not known
+   */
+  synchronized int pages(final String name) {
+    final int[] counts = previous.get(name);
+    return counts == null ? -1 : counts[0];
+  }
+
+  /**
+   * @return average number of thumbnails per listing page in the last run
+   */
+  synchronized int itemsPerPage() {
+    long pages = 0;
+    long items = 0;
+    for (int[] counts : previous.values()) {
+      pages += counts[0];
+      items += counts[1];
+    }
+    return pages == 0 || items == 0 ? DEFAULT_ITEMS_PER_PAGE : (int) Math.max(1, items / pages);
+  }
+
+  /**
+   * Count (part of) a walk of a name's listing pages.
+   * @param name whose pages were walked
+   * @param pages walked
+   * @param items listed on them
+   * @param complete whether the walk got to where it was meant to stop
+   */
+  synchronized void walked(final String name, final int pages, final int items, final boolean complete) {
+    final int[] counts = current.computeIfAbsent(name, n -> new int[2]);
+    counts[0] += pages;
+    counts[1] += items;
+    if (!complete) incomplete.add(name);
+  }
+
+  /**
+   * Count a name as not walked completely, i.e. because it was resumed.
+   * @param name to keep the earlier counts of
+   */
+  synchronized void resumed(final String name) {
+    incomplete.add(name);
+  }
+
+  /**
+   * Take over the counts of some names from other costs, i.e. a shard's.
+   * @param other costs, as saved
+   * @param names to take the counts of
+   */
+  synchronized void include(final CrawlCosts other, final Iterable<String> names) {
+    for (String name : names) {
+      final int[] counts = other.previous.get(name);
+      if (counts != null) current.put(name, counts);
+    }
+  }
+
+  /**
+   * Write the costs of this run, keeping earlier counts of names it didn't walk completely.
+   */
+  synchronized void save() {
+    final Map<String, int[]> costs = new TreeMap<>(previous);
+    for (Map.Entry<String, int[]> name : current.entrySet()) {
+      if (!incomplete.contains(name.getKey())) costs.put(name.getKey(), name.getValue());
+    }
+
+    final File tmp = new File(file.getPath() + ".tmp");
+    try {
+      try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+        for (Map.Entry<String, int[]> name : costs.entrySet()) {
+          out.write(name.getKey() + "\t" + name.getValue()[0] + "\t" + name.getValue()[1] + "\n");
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Error writing crawl costs " + file.getPath() + ": " + e);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The URLs of a crawl, shared by all workers and sources, so every listing
+ *   page, gallery page and image is fetched at most once per run, no matter
+ *   how many species, synonyms or sources lead to it.
+ *
+ * A URL is claimed before it's fetched, and only the first claim wins.
+ *
+ * Items tagged with more than one species are filed under a label picked
+ *   from their tags, not under whichever worker got there first: an accepted
+ *   name beats a synonym, and otherwise the alphabetically first label wins.
+ */
+class CrawlFrontier {
+
+  /**
+   * Every URL claimed so far.
+   */
+  private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Labels of accepted names and synonyms, by tag.
+   */
+  private final SpeciesLabels labels;
+
+  /**
+   * Constructor.
+   * @param labels to resolve tags to labels with
+   */
+  CrawlFrontier(final SpeciesLabels labels) {
+    this.labels = labels;
+    ScraperMetrics.get().gauge("frontier.urls", claimed::size);
+  }
+
+  /**
+   * Claim a URL for fetching.
+   * @param url to claim
+   * @return true if this is the first claim of the URL in this crawl
+   */
+  boolean claim(final String url) {
+    final boolean first = claimed.add(url);
+    if (!first) ScraperMetrics.get().count("frontier.duplicates", 1);
+    return first;
+  }
+
+  /**
+   * Pick the label to file a gallery item under.
+   * @param tagHrefs of the item's tags
+   * @param fallbackLabel if none of the tags is a known name
+   * @return the label
+   */
+  String assignLabel(final Iterable<String> tagHrefs, final String fallbackLabel) {
+    String accepted = null;
+    String synonym = null;
+    boolean multiLabel = false;
+    for (String tagHref : tagHrefs) {
+      final String tag = tagSlug(tagHref);
+      final String label = labels.labelOfTag(tag);
+      if (label == null) continue;
+
+      // a tag is the accepted name if it's the tag of its own label
+      final String acceptedLabel = slug(label).equals(tag) ? label : null;
+      final String synonymLabel = acceptedLabel == null ? label : null;
+      final String seen = accepted != null ? accepted : synonym;
+      if (seen != null && !seen.equals(label)) multiLabel = true;
+      if (acceptedLabel != null && (accepted == null || acceptedLabel.compareTo(accepted) < 0)) accepted = acceptedLabel;
+      if (synonymLabel != null && (synonym == null || synonymLabel.compareTo(synonym) < 0)) synonym = synonymLabel;
+    }
+    if (multiLabel) ScraperMetrics.get().count("frontier.multiLabel", 1);
+    if (accepted != null) return accepted;
+    return synonym != null ? synonym : fallbackLabel;
+  }
+
+  /**
+   * @param name of a species
+   * @return the name's tag on Arachnoboards
+   */
+  static String slug(final String name) {
+    return name.replace(" ", "-").toLowerCase();
+  }
+
+  /**
+   * @param tagHref link to a tag, i.e. tags/brachypelma-smithi/
+   * @return the tag
+   */
+  static String tagSlug(final String tagHref) {
+    final int start = tagHref.indexOf("tags/");
+    String tag = start < 0 ? tagHref : tagHref.substring(start + 5);
+    if (tag.endsWith("/")) tag = tag.substring(0, tag.length() - 1);
+    return tag;
+  }
+}
@@ -0,0 +1,395 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only journal of crawl progress, so a crawl that dies halfway
+ *   resumes where it stopped instead of starting over.
+ *
+ * One tab separated record per line:
+ *   L name page next href...  a listing page of name was walked (its next page, or - if it was the last)
+ *   G href image label tag... a gallery page was scraped (image path, or - if the image is skipped,
+ *                             the label the image is filed under, and the page's tags)
+ *   D href                    an image was downloaded
+ *
+ * Records are buffered and synced to disk in batches, whenever enough of
+ *   them have piled up or a second has passed. On restart, a name's listing
+ *   pages are walked again from every recorded next page that wasn't walked
+ *   itself (a name's pages may have been walked in several parts at once),
+ *   and only gallery items without a G or D record are re-queued. The
+ *   journal is deleted once a run completes.
+ */
+class CrawlJournal {
+
+  /**
+   * Number of records after which the journal is synced right away.
+   */
+  private static final int SYNC_RECORDS = Integer.getInteger("scraper.journal.syncRecords", 256);
+
+  /**
+   * Max time a record stays unsynced.
+   */
+  private static final long SYNC_MILLIS = Long.getLong("scraper.journal.syncMillis", 1000L);
+
+  /**
+   * Marks the end of a name's listing pages, or a skipped image.
+   */
+  private static final String NONE = "-";
+
+  /**
+   * Journal file.
+   */
+  private final File file;
+
+  /**
+   * Listing pages walked of each name, and the next pages they link to.
+   */
+  private final Map<String, Set<String>> walkedPages = new HashMap<>();
+  private final Map<String, Set<String>> nextPages = new HashMap<>();
+
+  /**
+   * Gallery items found on each name's walked listing pages.
+   */
+  private final Map<String, Set<String>> listedItems = new HashMap<>();
+
+  /**
+   * Image path of each scraped gallery page, or NONE if the image is skipped.
+   */
+  private final Map<String, String> galleryImages = new HashMap<>();
+
+  /**
+   * Label each scraped gallery page's image is filed under.
+   */
+  private final Map<String, String> galleryLabels = new HashMap<>();
+
+  /**
+   * Tags of each scraped gallery page.
+   */
+  private final Map<String, List<String>> galleryTags = new HashMap<>();
+
+  /**
+   * Downloaded gallery items.
+   */
+  private final Set<String> downloaded = new HashSet<>();
+
+  /**
+   * Stream the journal is written to, and its channel for syncing.
+   */
+  private final FileOutputStream stream;
+  private final Writer out;
+
+  /**
+   * Syncs the journal periodically.
+   */
+  private final ScheduledExecutorService syncer;
+
+  /**
+   * Number of records written since the last sync.
+   */
+  private int unsynced;
+
+  /**
+   * Guards the replayed records and the file. Not a monitor, as records are
+   *   written and synced from virtual download threads, and one blocked on
+   *   a monitor would hold on to its carrier thread while a sync runs.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Open a journal, replaying it if it exists.
+   * @param file of the journal
+   * @throws IOException if the journal can't be read or opened
+   */
+  CrawlJournal(final File file) throws IOException {
+    this.file = file;
+    if (file.exists()) replay();
+    this.stream = new FileOutputStream(file, true);
+    this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    this.syncer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("Journal Thread %d").setDaemon(true).build());
+    syncer.scheduleWithFixedDelay(this::sync, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+    if (!walkedPages.isEmpty())
+      System.out.println("Resuming crawl of " + walkedPages.size() + " names from " + file.getPath());
+  }
+
+  /**
+   * @param name to check
+   * @param firstPage path of the name's first listing page
+   * @return paths of the listing pages to resume the name at (none if all were walked in
+   *   an earlier run), or null if the name's walk hasn't started yet
+   */
+  Set<String> resumePages(final String name, final String firstPage) {
+    lock.lock();
+    try {
+      final Set<String> walked = walkedPages.get(name);
+      if (walked == null) return null;
+
+      final Set<String> resume = new LinkedHashSet<>();
+      if (!walked.contains(firstPage)) resume.add(firstPage);
+      for (String page : nextPages.get(name)) {
+        if (!walked.contains(page)) resume.add(page);
+      }
+      return resume;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param name to check
+   * @param page path of one of the name's listing pages
+   * @return true if the page was walked in an earlier run
+   */
+  boolean isWalked(final String name, final String page) {
+    lock.lock();
+    try {
+      final Set<String> walked = walkedPages.get(name);
+      return walked != null && walked.contains(page);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param name to get items of
+   * @return gallery items listed for a name in an earlier run that weren't finished
+   */
+  Set<String> unfinishedItems(final String name) {
+    lock.lock();
+    try {
+      final Set<String> items = listedItems.get(name);
+      if (items == null) return Collections.emptySet();
+
+      final Set<String> unfinished = new LinkedHashSet<>();
+      for (String href : items) {
+        if (!downloaded.contains(href) && !NONE.equals(galleryImages.get(href))) unfinished.add(href);
+      }
+      return unfinished;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param href of a gallery item
+   * @return image path of the item if its gallery page was scraped in an earlier run, otherwise null
+   */
+  String galleryImage(final String href) {
+    lock.lock();
+    try {
+      final String image = galleryImages.get(href);
+      return NONE.equals(image) ? null : image;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param href of a gallery item
+   * @return label the item's image is filed under, if its gallery page was scraped in an earlier run, otherwise null
+   */
+  String galleryLabel(final String href) {
+    lock.lock();
+    try {
+      return galleryLabels.get(href);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param href of a gallery item
+   * @return tags of the item, if its gallery page was scraped in an earlier run, otherwise none
+   */
+  List<String> galleryTags(final String href) {
+    lock.lock();
+    try {
+      return galleryTags.getOrDefault(href, Collections.emptyList());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record a walked listing page.
+   * @param name whose listing page it is
+   * @param page path of the page
+   * @param nextPage path of the next page, or null if it was the last
+   * @param hrefs of the gallery items on the page
+   */
+  void listingPage(final String name, final String page, final String nextPage, final Iterable<String> hrefs) {
+    final StringBuilder record = new StringBuilder("L\t").append(name).append('\t').append(page)
+      .append('\t').append(nextPage == null ? NONE : nextPage);
+    for (String href : hrefs) record.append('\t').append(href);
+    append(record.toString());
+  }
+
+  /**
+   * Record a scraped gallery page.
+   * @param href of the gallery item
+   * @param imagePath of its image, or null if the image is skipped
+   * @param label the image is filed under
+   * @param tags of the gallery page
+   */
+  void galleryPage(final String href, final String imagePath, final String label, final Iterable<String> tags) {
+    final StringBuilder record = new StringBuilder("G\t").append(href).append('\t')
+      .append(imagePath == null ? NONE : imagePath).append('\t').append(label);
+    for (String tag : tags) record.append('\t').append(tag);
+    append(record.toString());
+  }
+
+  /**
+   * Record a downloaded image.
+   * @param href of the gallery item
+   */
+  void download(final String href) {
+    append("D\t" + href);
+  }
+
+  /**
+   * Close the journal, keeping it to resume from.
+   */
+  void close() {
+    syncer.shutdownNow();
+    sync();
+    lock.lock();
+    try {
+      out.close();
+    } catch (IOException e) {
+      System.err.println("Error closing crawl journal " + file.getPath() + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Close and delete the journal, once the crawl has completed.
+   */
+  void complete() {
+    close();
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      System.err.println("Error deleting crawl journal " + file.getPath() + ": " + e);
+    }
+  }
+
+  /**
+   * Write a record, syncing if enough have piled up.
+   * @param record to write
+   */
+  private void append(final String record) {
+    lock.lock();
+    try {
+      out.write(record);
+      out.write('\n');
+      if (++unsynced >= SYNC_RECORDS) sync();
+    } catch (IOException e) {
+      System.err.println("Error writing to crawl journal " + file.getPath() + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Flush buffered records and force them to disk.
+   */
+  private void sync() {
+    lock.lock();
+    try {
+      if (unsynced == 0) return;
+      out.flush();
+      final FileChannel channel = stream.getChannel();
+      if (channel.isOpen()) channel.force(false);
+      unsynced = 0;
+    } catch (IOException e) {
+      System.err.println("Error syncing crawl journal " + file.getPath() + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Read all records of an earlier run.
+   * A partially written last line (i.e. from a crash) is cut off, so new records aren't appended to it.
+   * @throws IOException if reading fails
+   */
+  private void replay() throws IOException {
+    cutOffPartialLine();
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        final String[] fields = line.split("\t");
+        switch (fields[0]) {
+          case "L":
+            if (fields.length < 4) break;
+            walkedPages.computeIfAbsent(fields[1], name -> new HashSet<>()).add(fields[2]);
+            final Set<String> next = nextPages.computeIfAbsent(fields[1], name -> new LinkedHashSet<>());
+            if (!NONE.equals(fields[3])) next.add(fields[3]);
+            final Set<String> items = listedItems.computeIfAbsent(fields[1], name -> new LinkedHashSet<>());
+            for (int i = 4; i < fields.length; i++) items.add(fields[i]);
+            break;
+          case "G":
+            if (fields.length >= 3) galleryImages.put(fields[1], fields[2]);
+            if (fields.length >= 4) galleryLabels.put(fields[1], fields[3]);
+            if (fields.length > 4) galleryTags.put(fields[1], Arrays.asList(fields).subList(4, fields.length));
+            break;
+          case "D":
+            if (fields.length == 2) downloaded.add(fields[1]);
+            break;
+          default:
+            break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Truncate the journal after its last complete line.
+   * @throws IOException if reading or truncating fails
+   */
+  private void cutOffPartialLine() throws IOException {
+    try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+      final byte[] chunk = new byte[4096];
+      long end = journal.length();
+      while (end > 0) {
+        final int length = (int) Math.min(chunk.length, end);
+        journal.seek(end - length);
+        journal.readFully(chunk, 0, length);
+        for (int i = length - 1; i >= 0; i--) {
+          if (chunk[i] == '\n') {
+            journal.setLength(end - length + i + 1);
+            return;
+          }
+        }
+        end -= length;
+      }
+      journal.setLength(0);
+    }
+  }
+}
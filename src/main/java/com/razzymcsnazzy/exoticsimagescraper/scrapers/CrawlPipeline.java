@@ -0,0 +1,171 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The gallery page and image download stages of a crawl.
+ *
+ * Listing pages are walked by the workers themselves, which hand each
+ *   thumbnail to the gallery stage, which in turn hands each image to the
+ *   download stage. Stages are joined by bounded queues: a producer blocks
+ *   when the next stage is full, so memory stays flat while slow image
+ *   downloads no longer hold up page discovery.
+ *
+ * On virtual threads (see VirtualThreads) each task gets a thread of its own
+ *   instead, so the stages are only bounded by how many tasks they may hold
+ *   at once, and real concurrency is up to each host's HostThrottle.
+ */
+class CrawlPipeline {
+
+  /**
+   * Max number of tasks a stage holds at once on virtual threads, running or
+   *   waiting on a host (-Dscraper.virtual.maxTasks).
+   */
+  private static final int VIRTUAL_MAX_TASKS = Integer.getInteger("scraper.virtual.maxTasks", 10_000);
+
+  /**
+   * Stage that fetches and parses gallery pages.
+   */
+  private final Stage galleryStage;
+
+  /**
+   * Stage that downloads images.
+   */
+  private final Stage downloadStage;
+
+  /**
+   * Constructor.
+   * @param galleryThreads number of threads fetching gallery pages
+   * @param downloadThreads number of threads downloading images
+   * @param queueCapacity max number of tasks waiting in front of each stage
+   */
+  CrawlPipeline(final int galleryThreads, final int downloadThreads, final int queueCapacity) {
+    if (VirtualThreads.isEnabled()) {
+      this.galleryStage = new Stage(VirtualThreads.newPerTaskExecutor("Gallery Thread "), VIRTUAL_MAX_TASKS);
+      this.downloadStage = new Stage(VirtualThreads.newPerTaskExecutor("Download Thread "), VIRTUAL_MAX_TASKS);
+    } else {
+      this.galleryStage = new Stage(newPool("Gallery Thread %d", galleryThreads, queueCapacity), 0);
+      this.downloadStage = new Stage(newPool("Download Thread %d", downloadThreads, queueCapacity), 0);
+    }
+
+    final ScraperMetrics metrics = ScraperMetrics.get();
+    metrics.gauge("galleryStage.queued", galleryStage::queued);
+    metrics.gauge("galleryStage.active", galleryStage::active);
+    metrics.gauge("downloadStage.queued", downloadStage::queued);
+    metrics.gauge("downloadStage.active", downloadStage::active);
+  }
+
+  /**
+   * Queue a gallery page task, blocking while the gallery stage is full.
+   * @param task to run
+   */
+  void submitGalleryPage(final Runnable task) { galleryStage.execute(task); }
+
+  /**
+   * Queue an image download task, blocking while the download stage is full.
+   * @param task to run
+   */
+  void submitDownload(final Runnable task) { downloadStage.execute(task); }
+
+  /**
+   * Let both stages drain and stop. Must only be called once nothing
+   *   submits gallery pages anymore.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void shutdown() throws InterruptedException {
+    galleryStage.shutdown();
+    downloadStage.shutdown();
+  }
+
+  /**
+   * A stage: either a fixed size pool with a bounded queue, or a thread per
+   *   task with a cap on the number of tasks. Either way submitters block
+   *   while the stage is full.
+   */
+  private static class Stage {
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final int maxTasks;
+
+    /**
+     * @param executor to run tasks on
+     * @param maxTasks max number of tasks held at once, or 0 if the executor bounds itself
+     */
+    Stage(final ExecutorService executor, final int maxTasks) {
+      this.executor = executor;
+      this.maxTasks = maxTasks;
+      this.slots = maxTasks > 0 ? new Semaphore(maxTasks) : null;
+    }
+
+    void execute(final Runnable task) {
+      if (slots == null) {
+        executor.execute(task);
+        return;
+      }
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted while waiting for stage", e);
+      }
+      try {
+        executor.execute(() -> {
+          try {
+            task.run();
+          } finally {
+            slots.release();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        slots.release();
+        throw e;
+      }
+    }
+
+    void shutdown() throws InterruptedException {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    long queued() {
+      return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    long active() {
+      return executor instanceof ThreadPoolExecutor
+        ? ((ThreadPoolExecutor) executor).getActiveCount()
+        : maxTasks - slots.availablePermits();
+    }
+  }
+
+  /**
+   * Make a fixed size pool with a bounded queue that blocks submitters when full.
+   * @param nameFormat for the stage's threads
+   * @param threads in the stage
+   * @param queueCapacity of the stage
+   * @return the pool
+   */
+  private static ThreadPoolExecutor newPool(final String nameFormat, final int threads, final int queueCapacity) {
+    return new ThreadPoolExecutor(
+      threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(queueCapacity),
+      new ThreadFactoryBuilder().setNameFormat(nameFormat).build(),
+      (task, stage) -> {
+        if (stage.isShutdown()) throw new RejectedExecutionException("Stage is shut down");
+        try {
+          stage.getQueue().put(task);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RejectedExecutionException("Interrupted while waiting for stage", e);
+        }
+      });
+  }
+}
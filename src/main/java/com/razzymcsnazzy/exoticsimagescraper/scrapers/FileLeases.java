@@ -0,0 +1,279 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases on tasks shared by several scraper processes, kept as files in a
+ *   directory they all see, so they need nothing else to divide up work.
+ *
+ * A task's lease is a file [task].lease.[epoch], created exclusively, so of
+ *   any number of processes asking for the same epoch only one gets it. The
+ *   holder rewrites its lease every quarter of -Dscraper.lease.ttlMillis
+ *   (60 s). A lease that's seen unchanged for a whole TTL, by the clock of
+ *   whoever is looking, is taken over by creating the next epoch, so clocks
+ *   don't need to agree. A holder that finds a later epoch than its own has
+ *   lost the lease, and must stop working on the task and not mark it done.
+ *
+ * A finished task gets a [task].done file with a record of how it went.
+ */
+class FileLeases {
+
+  /**
+   * Time a lease may go without a heartbeat before it's taken over.
+   */
+  private static final long TTL_MILLIS = Long.getLong("scraper.lease.ttlMillis", 60_000L);
+
+  /**
+   * Content of a lease given up by its holder, which may be taken over right away.
+   */
+  private static final String RELEASED = "-";
+
+  /**
+   * A lease as last seen, and since when it looks like that.
+   */
+  private static class Observation {
+    final int epoch;
+    final String content;
+    final long since;
+
+    Observation(final int epoch, final String content, final long since) {
+      this.epoch = epoch;
+      this.content = content;
+      this.since = since;
+    }
+  }
+
+  private final File dir;
+  private final String node;
+
+  /**
+   * Leases of other nodes as last seen, by task.
+   */
+  private final Map<String, Observation> observed = new HashMap<>();
+
+  /**
+   * Renews the leases this node holds.
+   */
+  private final ScheduledExecutorService heartbeats;
+
+  /**
+   * Constructor.
+   * @param dir shared by all nodes
+   * @param node name of this node
+   */
+  FileLeases(final File dir, final String node) {
+    this.dir = dir;
+    this.node = node;
+    dir.mkdirs();
+    final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+      new ThreadFactoryBuilder().setNameFormat("Lease Thread %d").setDaemon(true).build());
+    timer.setRemoveOnCancelPolicy(true);
+    this.heartbeats = timer;
+  }
+
+  /**
+   * A lease held by this node.
+   */
+  final class Lease {
+    final String task;
+    final int epoch;
+    private final File file;
+    private final ScheduledFuture<?> heartbeat;
+    private int beats;
+    private volatile boolean lost;
+
+    private Lease(final String task, final int epoch) {
+      this.task = task;
+      this.epoch = epoch;
+      this.file = leaseFile(task, epoch);
+      final long period = Math.max(1, TTL_MILLIS / 4);
+      this.heartbeat = heartbeats.scheduleWithFixedDelay(this::beat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Renew the lease, unless another node has taken it over.
+     */
+    private synchronized void beat() {
+      if (lost) return;
+      try {
+        if (currentEpoch(task) > epoch) {
+          lost = true;
+          heartbeat.cancel(false);
+          System.err.println("Lost lease of " + task + " to another node");
+          return;
+        }
+        write(file, node + "\t" + ++beats);
+      } catch (IOException e) {
+        System.err.println("Error renewing lease of " + task + ": " + e);
+      }
+    }
+
+    /**
+     * @return true if another node has taken the lease over, so this one must stop working on the task
+     */
+    boolean isLost() {
+      return lost;
+    }
+
+    /**
+     * Mark the task done and stop renewing the lease.
+     * @param record of how the task went
+     * @return true if the task was marked done, false if the lease was lost before
+     * @throws IOException if the task can't be marked done
+     */
+    synchronized boolean done(final String record) throws IOException {
+      heartbeat.cancel(false);
+      if (lost || currentEpoch(task) > epoch) return false;
+      write(doneFile(task), record);
+      return true;
+    }
+
+    /**
+     * Give the lease up without finishing the task, so another node can take it over right away.
+     */
+    synchronized void release() {
+      heartbeat.cancel(false);
+      if (lost) return;
+      try {
+        write(file, RELEASED);
+      } catch (IOException e) {
+        System.err.println("Error releasing lease of " + task + ", it will expire: " + e);
+      }
+    }
+  }
+
+  /**
+   * Try to get the lease of a task: if no one has it, or the one who had it
+   *   gave it up or stopped renewing it.
+   * @param task to get the lease of
+   * @return the lease, or null if the task is done or leased by a live node
+   * @throws IOException if the lease directory can't be read or written
+   */
+  Lease tryAcquire(final String task) throws IOException {
+    if (isDone(task)) return null;
+
+    final int epoch = currentEpoch(task);
+    String holder = null;
+    if (epoch > 0) {
+      final String content;
+      try {
+        content = read(leaseFile(task, epoch));
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+      final long now = System.nanoTime();
+      final Observation seen = observed.get(task);
+      if (!RELEASED.equals(content)) {
+        if (seen == null || seen.epoch != epoch || !seen.content.equals(content)) {
+          observed.put(task, new Observation(epoch, content, now));
+          return null;
+        }
+        if (now - seen.since < TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS)) return null;
+        holder = content.isEmpty() ? "a node that never got going" : content.split("\t")[0];
+      }
+    }
+
+    if (!create(leaseFile(task, epoch + 1), node + "\t0")) return null;
+    final Lease lease = new Lease(task, epoch + 1);
+    if (isDone(task)) {
+      lease.release();
+      return null;
+    }
+    if (holder != null) System.out.println("Took over " + task + " from " + holder + " (epoch " + lease.epoch + ")");
+    return lease;
+  }
+
+  /**
+   * @param task to check
+   * @return true if the task is done
+   */
+  boolean isDone(final String task) {
+    return doneFile(task).exists();
+  }
+
+  /**
+   * @param task that is done
+   * @return the record it was marked done with
+   * @throws IOException if the task isn't done or its record can't be read
+   */
+  String doneRecord(final String task) throws IOException {
+    return read(doneFile(task));
+  }
+
+  /**
+   * Stop renewing leases, once this node is done.
+   */
+  void close() {
+    heartbeats.shutdownNow();
+  }
+
+  /**
+   * @param task to check
+   * @return latest epoch of the task's lease, or 0 if it was never leased
+   */
+  private int currentEpoch(final String task) throws IOException {
+    final String prefix = task + ".lease.";
+    final String[] names = dir.list();
+    if (names == null) throw new IOException("Can't list lease directory " + dir.getPath());
+    int epoch = 0;
+    for (String name : names) {
+      if (!name.startsWith(prefix)) continue;
+      try {
+        epoch = Math.max(epoch, Integer.parseInt(name.substring(prefix.length())));
+      } catch (NumberFormatException e) {
+        // a lease being rewritten
+      }
+    }
+    return epoch;
+  }
+
+  private File leaseFile(final String task, final int epoch) {
+    return new File(dir, task + ".lease." + epoch);
+  }
+
+  private File doneFile(final String task) {
+    return new File(dir, task + ".done");
+  }
+
+  /**
+   * Create a file with some content, unless it exists.
+   * @return true if this call created the file
+   */
+  private static boolean create(final File file, final String content) throws IOException {
+    try (OutputStream out = Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Replace the content of a file at once, so it's never seen half written.
+   */
+  private static void write(final File file, final String content) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String read(final File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+  }
+}
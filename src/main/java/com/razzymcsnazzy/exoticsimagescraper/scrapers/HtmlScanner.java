@@ -0,0 +1,421 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Steps through the tags of an HTML page as its bytes come in, without
+ *   building a DOM. Only names and attributes of the tags asked about are
+ *   ever looked at, and only attribute values asked for become Strings, so
+ *   a page costs little more than the bytes it's read into.
+ *
+ * That's only good enough for pages whose structure is known (see ABPages),
+ *   so everything read is kept, and the page can still be parsed properly
+ *   with parse() if what the scanner sees doesn't add up. Text between tags
+ *   is only checked for a needle, i.e. to find a "Next" link. Comments,
+ *   doctypes and the contents of script and style elements are skipped.
+ *
+ * Works on the raw bytes, so it needs a charset that's a superset of ASCII.
+ */
+final class HtmlScanner {
+
+  /**
+   * Size pages are read in, and largest buffer worth keeping for the next page.
+   */
+  private static final int BUFFER_SIZE = 32 * 1024;
+  private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Buffers pages are read into, pooled since every page is read on its own thread.
+   */
+  private static final Queue<byte[]> BUFFERS = new ConcurrentLinkedQueue<>();
+
+  private static final String[] VOID_ELEMENTS = {
+    "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"};
+
+  private final InputStream in;
+  private final String charsetName;
+  private final Charset charset;
+  private final byte[] needle;
+
+  /**
+   * Everything read so far, and how far it's been scanned.
+   */
+  private byte[] buffer;
+  private int length;
+  private int pos;
+  private boolean eof;
+
+  /**
+   * The current tag: where its name starts and ends, and where its '>' is.
+   */
+  private int nameStart = -1;
+  private int nameEnd;
+  private int tagEnd;
+  private boolean endTag;
+  private boolean opens;
+
+  /**
+   * The tag before the current one.
+   */
+  private int previousNameStart = -1;
+  private int previousNameEnd;
+  private int previousTagEnd;
+  private boolean previousOpens;
+
+  /**
+   * Whether the text between the previous and the current tag holds the needle.
+   */
+  private boolean textMatched;
+
+  /**
+   * Whether the current tag starts a script or style, whose contents aren't HTML.
+   */
+  private boolean rawText;
+
+  /**
+   * Bounds of the attribute value last found.
+   */
+  private int valueStart;
+  private int valueEnd;
+
+  /**
+   * Constructor.
+   * @param in page to scan
+   * @param charsetName of the page, or null if unknown (taken to be UTF-8)
+   * @param needle text to look for between tags (lower case ASCII), or null
+   */
+  HtmlScanner(final InputStream in, final String charsetName, final String needle) {
+    this.in = in;
+    this.charsetName = charsetName;
+    this.charset = charsetName == null ? StandardCharsets.UTF_8 : Charset.forName(charsetName);
+    this.needle = needle == null ? null : needle.getBytes(StandardCharsets.US_ASCII);
+    final byte[] pooled = BUFFERS.poll();
+    this.buffer = pooled == null ? new byte[BUFFER_SIZE] : pooled;
+  }
+
+  /**
+   * @param charsetName of a page, or null if unknown
+   * @return whether pages in the charset can be scanned
+   */
+  static boolean supports(final String charsetName) {
+    if (charsetName == null) return true;
+    try {
+      final String name = Charset.forName(charsetName).name().toUpperCase();
+      return !name.startsWith("UTF-16") && !name.startsWith("UTF-32");
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Move on to the next start or end tag.
+   * @return false at the end of the page
+   * @throws IOException if the page can't be read
+   */
+  boolean next() throws IOException {
+    previousNameStart = nameStart;
+    previousNameEnd = nameEnd;
+    previousTagEnd = tagEnd;
+    previousOpens = opens;
+    textMatched = false;
+
+    if (rawText) {
+      rawText = false;
+      final int close = indexOfIgnoreCase("</" + name(nameStart, nameEnd), pos);
+      if (close < 0) return false;
+      pos = close;
+    }
+
+    while (true) {
+      final int lt = scanText();
+      if (lt < 0 || !available(lt + 1)) return false;
+
+      // comments, doctypes and processing instructions
+      final byte next = buffer[lt + 1];
+      if (next == '!' || next == '?') {
+        final boolean comment = available(lt + 3) && buffer[lt + 2] == '-' && buffer[lt + 3] == '-';
+        final int close = comment ? indexOfIgnoreCase("-->", lt + 4) : indexOfIgnoreCase(">", lt + 2);
+        if (close < 0) return false;
+        pos = close + (comment ? 3 : 1);
+        continue;
+      }
+
+      // a '<' that doesn't start a tag is just text
+      final boolean end = next == '/';
+      final int start = lt + (end ? 2 : 1);
+      if (!available(start) || !isLetter(buffer[start])) {
+        pos = lt + 1;
+        continue;
+      }
+
+      int stop = start;
+      while (available(stop) && !isSpace(buffer[stop]) && buffer[stop] != '/' && buffer[stop] != '>') stop++;
+      final int close = tagClose(stop);
+      if (close < 0) return false;
+
+      nameStart = start;
+      nameEnd = stop;
+      tagEnd = close;
+      endTag = end;
+      opens = !end && buffer[close - 1] != '/' && !isVoid();
+      rawText = opens && (nameIs("script") || nameIs("style"));
+      pos = close + 1;
+      return true;
+    }
+  }
+
+  /**
+   * @return whether the current tag is an end tag
+   */
+  boolean isEndTag() { return endTag; }
+
+  /**
+   * @return whether the current tag opens an element that has contents (not void or self-closing)
+   */
+  boolean opens() { return opens; }
+
+  /**
+   * @return whether the tag before the current one opened an element
+   */
+  boolean previousOpens() { return previousNameStart >= 0 && previousOpens; }
+
+  /**
+   * @param name lower case tag name
+   * @return whether the current tag has the name
+   */
+  boolean nameIs(final String name) {
+    return equalsIgnoreCase(nameStart, nameEnd, name);
+  }
+
+  /**
+   * @return lower case name of the tag before the current one
+   */
+  String previousName() {
+    return name(previousNameStart, previousNameEnd);
+  }
+
+  /**
+   * @param name of an attribute
+   * @return the attribute's value on the current tag, or null if it doesn't have it
+   */
+  String attr(final String name) {
+    return findAttr(nameEnd, tagEnd, name) ? value() : null;
+  }
+
+  /**
+   * @param name of an attribute
+   * @return the attribute's value on the tag before the current one, or null if it doesn't have it
+   */
+  String previousAttr(final String name) {
+    return previousNameStart >= 0 && findAttr(previousNameEnd, previousTagEnd, name) ? value() : null;
+  }
+
+  /**
+   * Check the current tag's class, the way jsoup's getElementsByClass does:
+   *   the whole class attribute, or any one class in it, ignoring case.
+   * @param className to look for
+   * @return whether the tag has the class
+   */
+  boolean hasClass(final String className) {
+    if (endTag || !findAttr(nameEnd, tagEnd, "class")) return false;
+    if (equalsIgnoreCase(valueStart, valueEnd, className)) return true;
+    int i = valueStart;
+    while (i < valueEnd) {
+      while (i < valueEnd && isSpace(buffer[i])) i++;
+      final int start = i;
+      while (i < valueEnd && !isSpace(buffer[i])) i++;
+      if (i > start && equalsIgnoreCase(start, i, className)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the text between the previous and the current tag holds the needle
+   */
+  boolean textMatched() { return textMatched; }
+
+  /**
+   * Parse the whole page, for when scanning it didn't work out.
+   * @param baseUri of the page
+   * @return the page
+   * @throws IOException if the page can't be read
+   */
+  Document parse(final String baseUri) throws IOException {
+    while (fill()) {
+      // read the rest of the page
+    }
+    return Jsoup.parse(new ByteArrayInputStream(buffer, 0, length), charsetName, baseUri);
+  }
+
+  /**
+   * Hand the buffer back for the next page. The scanner can't be used after.
+   */
+  void release() {
+    if (buffer.length <= MAX_POOLED_BUFFER_SIZE) BUFFERS.offer(buffer);
+    buffer = null;
+  }
+
+  /**
+   * Scan text up to the next '<', checking it for the needle.
+   * @return index of the '<', or -1 if the page ends first
+   */
+  private int scanText() throws IOException {
+    int i = pos;
+    while (available(i) && buffer[i] != '<') i++;
+    if (needle != null && !textMatched && containsNeedle(pos, Math.min(i, length))) textMatched = true;
+    return available(i) ? i : -1;
+  }
+
+  /**
+   * Find a tag's closing '>', skipping over quoted attribute values.
+   * @return index of the '>', or -1 if the page ends first
+   */
+  private int tagClose(final int from) throws IOException {
+    byte quote = 0;
+    for (int i = from; available(i); i++) {
+      final byte b = buffer[i];
+      if (quote != 0) {
+        if (b == quote) quote = 0;
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '>') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find an attribute in a tag, and remember the bounds of its value.
+   * @return whether the tag has the attribute
+   */
+  private boolean findAttr(final int from, final int to, final String name) {
+    int i = from;
+    while (i < to) {
+      while (i < to && (isSpace(buffer[i]) || buffer[i] == '/')) i++;
+      final int start = i;
+      while (i < to && !isSpace(buffer[i]) && buffer[i] != '=' && buffer[i] != '/') i++;
+      final int stop = i;
+      if (stop == start) {
+        i++;
+        continue;
+      }
+      while (i < to && isSpace(buffer[i])) i++;
+      int valueFrom = stop;
+      int valueTo = stop;
+      if (i < to && buffer[i] == '=') {
+        i++;
+        while (i < to && isSpace(buffer[i])) i++;
+        if (i < to && (buffer[i] == '"' || buffer[i] == '\'')) {
+          final byte quote = buffer[i++];
+          valueFrom = i;
+          while (i < to && buffer[i] != quote) i++;
+          valueTo = i++;
+        } else {
+          valueFrom = i;
+          while (i < to && !isSpace(buffer[i])) i++;
+          valueTo = i;
+        }
+      }
+      if (equalsIgnoreCase(start, stop, name)) {
+        valueStart = valueFrom;
+        valueEnd = valueTo;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the attribute value last found, with entities decoded
+   */
+  private String value() {
+    final String value = new String(buffer, valueStart, valueEnd - valueStart, charset);
+    return value.indexOf('&') < 0 ? value : Parser.unescapeEntities(value, true);
+  }
+
+  private boolean isVoid() {
+    for (String element : VOID_ELEMENTS) {
+      if (nameIs(element)) return true;
+    }
+    return false;
+  }
+
+  private String name(final int start, final int end) {
+    return new String(buffer, start, end - start, StandardCharsets.US_ASCII).toLowerCase();
+  }
+
+  private boolean equalsIgnoreCase(final int start, final int end, final String ascii) {
+    if (end - start != ascii.length()) return false;
+    for (int i = 0; i < ascii.length(); i++) {
+      if (toLower(buffer[start + i]) != toLower((byte) ascii.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  private boolean containsNeedle(final int start, final int end) {
+    for (int i = start; i <= end - needle.length; i++) {
+      int matched = 0;
+      while (matched < needle.length && toLower(buffer[i + matched]) == needle[matched]) matched++;
+      if (matched == needle.length) return true;
+    }
+    return false;
+  }
+
+  private int indexOfIgnoreCase(final String ascii, final int from) throws IOException {
+    for (int i = from; available(i + ascii.length() - 1); i++) {
+      if (equalsIgnoreCase(i, i + ascii.length(), ascii)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Read until the byte at an index is in, or the page ends.
+   * @return whether the index is in
+   */
+  private boolean available(final int index) throws IOException {
+    while (index >= length) {
+      if (!fill()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Read the next chunk of the page, growing the buffer if it's full.
+   * @return false at the end of the page
+   */
+  private boolean fill() throws IOException {
+    if (eof) return false;
+    if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    final int read = in.read(buffer, length, buffer.length - length);
+    if (read < 0) {
+      eof = true;
+      return false;
+    }
+    length += read;
+    return true;
+  }
+
+  private static byte toLower(final byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  private static boolean isLetter(final byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  private static boolean isSpace(final byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+}
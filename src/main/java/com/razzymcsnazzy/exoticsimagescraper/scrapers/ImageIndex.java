@@ -0,0 +1,390 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.google.common.io.CountingInputStream;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Index of the content hash (SHA-256) and perceptual hash of every image,
+ *   to find the same photo posted under several tags and species.
+ *
+ * In memory, images are found by content hash through a hash map, and
+ *   perceptual hashes are kept in a flat long array that is scanned for
+ *   near duplicates (a few thousand popcounts per image). Every image is
+ *   also appended to the index file, which is read back at startup, or
+ *   seeded from the images already on disk if it doesn't exist yet.
+ *
+ * Near duplicates under a different label, as well as exact ones, are
+ *   written to a conflicts file, since they most likely mean one of the
+ *   labels is wrong, and would leak between classes in training.
+ */
+class ImageIndex {
+
+  /**
+   * Max number of differing bits for two perceptual hashes to count as the same photo.
+   */
+  private static final int NEAR_DISTANCE = Integer.getInteger("scraper.dedupe.nearDistance", 6);
+
+  /**
+   * Perceptual hash of images that couldn't be decoded.
+   */
+  static final long NO_HASH = 0L;
+
+  /**
+   * An indexed image.
+   */
+  static class Entry {
+    final String label;
+    final String path;
+
+    Entry(final String label, final String path) {
+      this.label = label;
+      this.path = path;
+    }
+  }
+
+  /**
+   * Images by content hash.
+   */
+  private final Map<ByteBuffer, Entry> byDigest = new HashMap<>();
+
+  /**
+   * Perceptual hashes and their images, in the order they were added.
+   */
+  private long[] perceptualHashes = new long[1024];
+  private Entry[] perceptualEntries = new Entry[1024];
+  private int size;
+
+  /**
+   * Index file, and the stream appending to it.
+   */
+  private final File file;
+  private final DataOutputStream out;
+
+  /**
+   * File near and exact duplicates under different labels are written to.
+   */
+  private final File conflicts;
+
+  /**
+   * Guards the index and its files; a lock, since downloads add to it from virtual threads.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Load an index, or seed a new one from images already on disk.
+   * @param file of the index
+   * @param conflicts file to write duplicates under different labels to
+   * @param imageDirs to seed a new index from (one subdirectory per label)
+   * @throws IOException if the index can't be read or created
+   */
+  ImageIndex(final File file, final File conflicts, final File... imageDirs) throws IOException {
+    this.file = file;
+    this.conflicts = conflicts;
+    final boolean exists = file.exists();
+    if (exists) load();
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    if (!exists) {
+      for (File imageDir : imageDirs) seed(imageDir);
+      out.flush();
+    }
+    System.out.println("Image index " + file.getPath() + " knows " + byDigest.size() + " images");
+  }
+
+  /**
+   * @return a new SHA-256 digest
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Add an image, unless the index already has one with the same content.
+   * @param digest content hash of the image
+   * @param perceptualHash of the image
+   * @param label of the image
+   * @param path of the image
+   * @return the image with the same content, or null if the image was added
+   */
+  Entry add(final byte[] digest, final long perceptualHash, final String label, final String path) {
+    lock.lock();
+    try {
+      return add(digest, perceptualHash, label, path, 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add the images of another index (i.e. a shard's) that this one doesn't
+   *   have yet. Near duplicates are only looked for among images added since
+   *   nearFrom, as the other index already compared its images to the rest.
+   * @param other index file
+   * @param nearFrom number of images with a perceptual hash to skip when looking for near duplicates
+   * @return images of the other index that were already here under another path, by their path
+   * @throws IOException if the other index can't be read
+   */
+  Map<String, Entry> merge(final File other, final int nearFrom) throws IOException {
+    lock.lock();
+    try {
+      final Map<String, Entry> duplicates = new HashMap<>();
+      read(other, (digest, perceptualHash, entry) -> {
+        final Entry existing = add(digest, perceptualHash, entry.label, entry.path, nearFrom);
+        if (existing != null && !existing.path.equals(entry.path)) duplicates.put(entry.path, existing);
+      });
+      return duplicates;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of images with a perceptual hash
+   */
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Entry add(final byte[] digest, final long perceptualHash, final String label, final String path, final int nearFrom) {
+    final Entry existing = byDigest.get(ByteBuffer.wrap(digest));
+    if (existing != null) {
+      if (!existing.label.equals(label)) conflict("exact", 0, existing, label, path);
+      return existing;
+    }
+
+    // flag the same photo under another label
+    final Entry entry = new Entry(label, path);
+    if (perceptualHash != NO_HASH) {
+      for (int i = nearFrom; i < size; i++) {
+        final int distance = Long.bitCount(perceptualHashes[i] ^ perceptualHash);
+        if (distance <= NEAR_DISTANCE && !perceptualEntries[i].label.equals(label))
+          conflict("near", distance, perceptualEntries[i], label, path);
+      }
+    }
+
+    put(digest, perceptualHash, entry);
+    try {
+      write(digest, perceptualHash, entry);
+    } catch (IOException e) {
+      System.err.println("Error writing " + path + " to image index " + file.getPath() + ": " + e);
+    }
+    return null;
+  }
+
+  /**
+   * Flush and close the index file.
+   */
+  void close() {
+    lock.lock();
+    try {
+      out.close();
+    } catch (IOException e) {
+      System.err.println("Error closing image index " + file.getPath() + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Compute the content hash of a file.
+   * @param image to hash
+   * @return the hash
+   * @throws IOException if reading fails
+   */
+  static byte[] digestOf(final File image) throws IOException {
+    final MessageDigest digest = newDigest();
+    try (InputStream in = new FileInputStream(image)) {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) digest.update(buffer, 0, read);
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Compute the perceptual hash (dHash) of an image: shrink it to 9x8 gray
+   *   pixels and record whether each pixel is brighter than its right neighbour.
+   * Robust against rescaling and recompression, unlike the content hash.
+   * @param image to hash
+   * @return the hash, or NO_HASH if the image can't be decoded
+   */
+  static long perceptualHash(final File image) {
+    final BufferedImage decoded;
+    try {
+      decoded = ImageIO.read(image);
+    } catch (IOException | RuntimeException e) {
+      return NO_HASH;
+    }
+    if (decoded == null) return NO_HASH;
+
+    final BufferedImage small = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+    final Graphics2D graphics = small.createGraphics();
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    graphics.drawImage(decoded, 0, 0, 9, 8, null);
+    graphics.dispose();
+
+    long hash = 0;
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 8; x++) {
+        final int left = small.getRaster().getSample(x, y, 0);
+        final int right = small.getRaster().getSample(x + 1, y, 0);
+        hash = (hash << 1) | (left > right ? 1 : 0);
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Add an image to the in-memory index.
+   * @param digest content hash of the image
+   * @param perceptualHash of the image
+   * @param entry of the image
+   */
+  private void put(final byte[] digest, final long perceptualHash, final Entry entry) {
+    byDigest.put(ByteBuffer.wrap(digest), entry);
+    if (perceptualHash == NO_HASH) return;
+    if (size == perceptualHashes.length) {
+      perceptualHashes = Arrays.copyOf(perceptualHashes, size * 2);
+      perceptualEntries = Arrays.copyOf(perceptualEntries, size * 2);
+    }
+    perceptualHashes[size] = perceptualHash;
+    perceptualEntries[size] = entry;
+    size++;
+  }
+
+  /**
+   * Append an image to the index file.
+   * @param digest content hash of the image
+   * @param perceptualHash of the image
+   * @param entry of the image
+   * @throws IOException if writing fails
+   */
+  private void write(final byte[] digest, final long perceptualHash, final Entry entry) throws IOException {
+    out.write(digest);
+    out.writeLong(perceptualHash);
+    out.writeUTF(entry.label);
+    out.writeUTF(entry.path);
+  }
+
+  /**
+   * Reads the images of an index file.
+   */
+  private interface Reader {
+    void image(byte[] digest, long perceptualHash, Entry entry);
+  }
+
+  /**
+   * Read all images in the index file.
+   * A partially written last image (i.e. from a crash) is cut off, so new ones aren't appended to it.
+   * @throws IOException if reading fails
+   */
+  private void load() throws IOException {
+    final long length = read(file, this::put);
+    if (length < file.length()) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(length);
+      }
+    }
+  }
+
+  /**
+   * Read all images in an index file. A partially written last image is ignored.
+   * @param indexFile to read
+   * @param reader to hand each image to
+   * @return length of the complete images read
+   * @throws IOException if reading fails
+   */
+  private static long read(final File indexFile, final Reader reader) throws IOException {
+    long length = 0;
+    final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try (DataInputStream in = new DataInputStream(counter)) {
+      while (true) {
+        final byte[] digest = new byte[32];
+        in.readFully(digest);
+        final long perceptualHash = in.readLong();
+        final String label = in.readUTF();
+        final String path = in.readUTF();
+        reader.image(digest, perceptualHash, new Entry(label, path));
+        length = counter.getCount();
+      }
+    } catch (EOFException e) {
+      // end of index
+    }
+    return length;
+  }
+
+  /**
+   * Hash and add all images in a directory of label directories.
+   * @param imageDir to scan
+   * @throws IOException if writing fails
+   */
+  private void seed(final File imageDir) throws IOException {
+    if (!imageDir.isDirectory()) return;
+    final List<File> images = new ArrayList<>();
+    for (File labelDir : Objects.requireNonNull(imageDir.listFiles())) {
+      final File[] files = labelDir.listFiles();
+      if (files != null) images.addAll(Arrays.asList(files));
+    }
+
+    System.out.println("Hashing " + images.size() + " images in " + imageDir.getPath());
+    images.parallelStream().forEach(image -> {
+      try {
+        add(digestOf(image), perceptualHash(image), image.getParentFile().getName(), image.getPath());
+      } catch (IOException e) {
+        System.err.println("Error hashing " + image.getPath() + ": " + e);
+      }
+    });
+  }
+
+  /**
+   * Write a duplicate under a different label to the conflicts file.
+   * @param kind of duplicate (exact or near)
+   * @param distance between the perceptual hashes
+   * @param existing image
+   * @param label of the new image
+   * @param path of the new image
+   */
+  private void conflict(final String kind, final int distance, final Entry existing, final String label, final String path) {
+    try (Writer writer = new FileWriter(conflicts, true)) {
+      writer.write(kind + "\t" + distance + "\t" + existing.label + "\t" + existing.path + "\t" + label + "\t" + path + "\n");
+    } catch (IOException e) {
+      System.err.println("Error writing to " + conflicts.getPath() + ": " + e);
+    }
+  }
+}
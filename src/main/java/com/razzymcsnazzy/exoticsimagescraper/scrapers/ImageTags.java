@@ -0,0 +1,356 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.google.common.io.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * What was known about each image when it was scraped: its media ID, the
+ *   label it's filed under, the name (species or synonym) whose tag it was
+ *   found under, its file name, its dimensions and its gallery tags. Kept so
+ *   images can be filtered on their tags later (see TagFilter) without
+ *   crawling every gallery page again.
+ *
+ * Stored a column per file, next to the media manifest, so a filter reads
+ *   only the columns it needs, each in one go:
+ *   [store].strings             every label, name, file name and tag once (length prefixed UTF-8), numbered in order
+ *   [store].media               media ID of each image
+ *   [store].width, .height      dimensions of each image in pixels
+ *   [store].label, .source, .file    string numbers of each image's label, name and file name
+ *   [store].tag-ends            end of each image's tags in the tags column
+ *   [store].tags                string numbers of the tags of all images, one after another
+ * All numbers are 32 bit, big-endian.
+ *
+ * Images are appended as they're saved, and written out right away like
+ *   media manifest entries, so the store never falls behind the manifest.
+ *   An image scraped again in a later run gets another row, which counts
+ *   instead of the earlier one. Rows cut short by a crash are dropped when
+ *   the store is opened again, and a row that fails to be written is cut off
+ *   every column right away, so the columns never get out of step.
+ */
+class ImageTags {
+
+  /**
+   * Columns, by file name suffix.
+   */
+  private static final String STRINGS = "strings";
+  private static final String TAGS = "tags";
+  private static final String[] ROW_COLUMNS = { "media", "width", "height", "label", "source", "file", "tag-ends" };
+  private static final int MEDIA = 0;
+  private static final int WIDTH = 1;
+  private static final int HEIGHT = 2;
+  private static final int LABEL = 3;
+  private static final int SOURCE = 4;
+  private static final int FILE = 5;
+  private static final int TAG_ENDS = 6;
+
+  /**
+   * All rows of a store, read column by column.
+   */
+  static final class Table {
+    final String[] strings;
+    final int numRows;
+    final int[] media;
+    final int[] width;
+    final int[] height;
+    final int[] label;
+    final int[] source;
+    final int[] file;
+    final int[] tagEnds;
+    final int[] tags;
+
+    private Table(final String[] strings, final int[][] columns, final int[] tags, final int numRows) {
+      this.strings = strings;
+      this.numRows = numRows;
+      this.media = columns[MEDIA];
+      this.width = columns[WIDTH];
+      this.height = columns[HEIGHT];
+      this.label = columns[LABEL];
+      this.source = columns[SOURCE];
+      this.file = columns[FILE];
+      this.tagEnds = columns[TAG_ENDS];
+      this.tags = tags;
+    }
+
+    /**
+     * @param row of an image
+     * @return index of the image's first tag in the tags column
+     */
+    int tagStart(final int row) {
+      return row == 0 ? 0 : tagEnds[row - 1];
+    }
+  }
+
+  private final String store;
+  private final Map<String, Integer> stringNumbers = new HashMap<>();
+  private final FileChannel strings;
+  private final FileChannel[] rowColumns = new FileChannel[ROW_COLUMNS.length];
+  private final FileChannel tags;
+  private long stringsLength;
+  private int numRows;
+  private int numTags;
+
+  /**
+   * Set once a failed row couldn't be cut off again, after which no more rows are taken.
+   */
+  private boolean broken;
+
+  /**
+   * Guards the store. Rows are written from virtual download threads, which
+   *   park on a lock but would pin their carrier on a monitor.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Open a store, or create a new one.
+   * @param store path of the store's files, without column suffix
+   * @throws IOException if the store can't be read or created
+   */
+  ImageTags(final File store) throws IOException {
+    this.store = store.getPath();
+    final Table table = read(store, true);
+    for (int i = 0; i < table.strings.length; i++) stringNumbers.put(table.strings[i], i);
+    this.numRows = table.numRows;
+    this.numTags = numRows == 0 ? 0 : table.tagEnds[numRows - 1];
+
+    this.strings = append(this.store, STRINGS);
+    for (int column = 0; column < ROW_COLUMNS.length; column++) rowColumns[column] = append(this.store, ROW_COLUMNS[column]);
+    this.tags = append(this.store, TAGS);
+    this.stringsLength = strings.size();
+    System.out.println("Image tags " + this.store + " know " + numRows + " images and " + stringNumbers.size() + " strings");
+  }
+
+  /**
+   * @param store path of a store's files, without column suffix
+   * @return names of the store's files
+   */
+  static List<String> fileNames(final String store) {
+    final List<String> names = new ArrayList<>();
+    names.add(store + "." + STRINGS);
+    for (String column : ROW_COLUMNS) names.add(store + "." + column);
+    names.add(store + "." + TAGS);
+    return names;
+  }
+
+  /**
+   * Add an image.
+   * @param mediaId of the image
+   * @param label the image is filed under
+   * @param source name whose tag the image was found under
+   * @param fileName of the image in its label directory
+   * @param width of the image in pixels
+   * @param height of the image in pixels
+   * @param imageTags of the image's gallery page
+   */
+  void add(final int mediaId, final String label, final String source, final String fileName,
+           final int width, final int height, final List<String> imageTags) {
+    lock.lock();
+    try {
+      if (broken) return;
+      final int numStrings = stringNumbers.size();
+      final long stringsBefore = stringsLength;
+      final int tagsBefore = numTags;
+      try {
+        final int[] row = new int[ROW_COLUMNS.length];
+        row[MEDIA] = mediaId;
+        row[WIDTH] = width;
+        row[HEIGHT] = height;
+        row[LABEL] = number(label);
+        row[SOURCE] = number(source);
+        row[FILE] = number(fileName);
+        final ByteBuffer tagNumbers = ByteBuffer.allocate(4 * imageTags.size());
+        for (String tag : imageTags) tagNumbers.putInt(number(tag));
+        numTags += imageTags.size();
+        row[TAG_ENDS] = numTags;
+
+        // strings first, then tags, then the row, so the row is only there once all it refers to is
+        tagNumbers.flip();
+        write(tags, tagNumbers);
+        for (int column = 0; column < row.length; column++) write(rowColumns[column], ByteBuffer.allocate(4).putInt(0, row[column]));
+        numRows++;
+      } catch (IOException e) {
+        System.err.println("Error writing tags of " + fileName + " to " + store + ": " + e);
+        cutOff(numStrings, stringsBefore, tagsBefore);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Cut a partly written row off every column, or stop taking rows if that fails too.
+   * @param numStrings before the row
+   * @param stringsBefore length of the strings before the row
+   * @param tagsBefore number of tags before the row
+   */
+  private void cutOff(final int numStrings, final long stringsBefore, final int tagsBefore) {
+    stringNumbers.values().removeIf(number -> number >= numStrings);
+    stringsLength = stringsBefore;
+    numTags = tagsBefore;
+    try {
+      strings.truncate(stringsBefore);
+      tags.truncate(4L * tagsBefore);
+      for (FileChannel column : rowColumns) column.truncate(4L * numRows);
+    } catch (IOException e) {
+      broken = true;
+      System.err.println("Error cutting off a failed row of " + store + ", taking no more rows: " + e);
+    }
+  }
+
+  /**
+   * Add all images of another store, i.e. a shard's.
+   * @param other store
+   * @throws IOException if the other store can't be read
+   */
+  void addAll(final File other) throws IOException {
+    lock.lock();
+    try {
+      final Table table = read(other, false);
+      for (int row = 0; row < table.numRows; row++) {
+        final List<String> imageTags = new ArrayList<>();
+        for (int i = table.tagStart(row); i < table.tagEnds[row]; i++) imageTags.add(table.strings[table.tags[i]]);
+        add(table.media[row], table.strings[table.label[row]], table.strings[table.source[row]],
+          table.strings[table.file[row]], table.width[row], table.height[row], imageTags);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Close the store's files.
+   */
+  void close() {
+    lock.lock();
+    try {
+      strings.close();
+      for (FileChannel column : rowColumns) column.close();
+      tags.close();
+    } catch (IOException e) {
+      System.err.println("Error closing image tags " + store + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of a string, adding it if it's new
+   */
+  private int number(final String string) throws IOException {
+    final Integer known = stringNumbers.get(string);
+    if (known != null) return known;
+    final int number = stringNumbers.size();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new DataOutputStream(bytes).writeUTF(string);
+    write(strings, ByteBuffer.wrap(bytes.toByteArray()));
+    stringsLength += bytes.size();
+    stringNumbers.put(string, number);
+    return number;
+  }
+
+  /**
+   * Read all complete rows of a store.
+   * @param store path of the store's files, without column suffix
+   * @param repair by cutting off incomplete rows and strings, so new ones can be appended
+   * @return the rows
+   * @throws IOException if reading fails
+   */
+  static Table read(final File store, final boolean repair) throws IOException {
+    final String path = store.getPath();
+
+    // strings, up to the last complete one
+    final List<String> strings = new ArrayList<>();
+    long stringsLength = 0;
+    final File stringsFile = new File(path + "." + STRINGS);
+    if (stringsFile.exists()) {
+      final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(stringsFile)));
+      try (DataInputStream in = new DataInputStream(counter)) {
+        while (true) {
+          strings.add(in.readUTF());
+          stringsLength = counter.getCount();
+        }
+      } catch (EOFException e) {
+        // end of strings
+      }
+    }
+
+    // rows all columns have, and whose strings and tags are all there
+    final int[][] columns = new int[ROW_COLUMNS.length][];
+    int numRows = Integer.MAX_VALUE;
+    for (int column = 0; column < ROW_COLUMNS.length; column++) {
+      columns[column] = readInts(new File(path + "." + ROW_COLUMNS[column]));
+      numRows = Math.min(numRows, columns[column].length);
+    }
+    final int[] tags = readInts(new File(path + "." + TAGS));
+    for (int row = 0; row < numRows; row++) {
+      if (!isComplete(columns, tags, row, strings.size())) {
+        numRows = row;
+        break;
+      }
+    }
+    for (int column = 0; column < ROW_COLUMNS.length; column++) columns[column] = Arrays.copyOf(columns[column], numRows);
+    final int numTags = numRows == 0 ? 0 : columns[TAG_ENDS][numRows - 1];
+
+    if (repair) {
+      truncate(stringsFile, stringsLength);
+      for (String column : ROW_COLUMNS) truncate(new File(path + "." + column), 4L * numRows);
+      truncate(new File(path + "." + TAGS), 4L * numTags);
+    }
+    return new Table(strings.toArray(new String[0]), columns, Arrays.copyOf(tags, numTags), numRows);
+  }
+
+  private static boolean isComplete(final int[][] columns, final int[] tags, final int row, final int numStrings) {
+    final int tagStart = row == 0 ? 0 : columns[TAG_ENDS][row - 1];
+    final int tagEnd = columns[TAG_ENDS][row];
+    if (tagEnd < tagStart || tagEnd > tags.length) return false;
+    for (int i = tagStart; i < tagEnd; i++) if (tags[i] < 0 || tags[i] >= numStrings) return false;
+    for (int column : new int[] { LABEL, SOURCE, FILE }) {
+      if (columns[column][row] < 0 || columns[column][row] >= numStrings) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return all whole ints in a file, or none if it doesn't exist
+   */
+  private static int[] readInts(final File file) throws IOException {
+    if (!file.exists()) return new int[0];
+    final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    final int[] ints = new int[bytes.remaining() / 4];
+    bytes.asIntBuffer().get(ints);
+    return ints;
+  }
+
+  private static void truncate(final File file, final long length) throws IOException {
+    if (!file.exists() || file.length() <= length) return;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      channel.truncate(length);
+    }
+  }
+
+  private static FileChannel append(final String store, final String column) throws IOException {
+    return FileChannel.open(new File(store + "." + column).toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private static void write(final FileChannel channel, final ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) channel.write(bytes);
+  }
+}
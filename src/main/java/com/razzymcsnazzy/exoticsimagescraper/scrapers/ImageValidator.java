@@ -0,0 +1,430 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that a file is a whole image of useful size without decoding it.
+ *   Only the magic bytes, the header with the dimensions and the marker at
+ *   the end of the file are read, which is enough to catch what goes wrong
+ *   with downloads: error pages served as images, transfers cut short and
+ *   thumbnails. That's a few small reads per image, so a pass over the whole
+ *   dataset runs at the speed of the disk rather than of decoding.
+ *
+ * Downloads are checked as they come in, and the dataset as a whole before
+ *   post processing. Images that fail are moved to images\quarantine\[label]
+ *   to have a look at, rather than deleted. Downloads that fail for good (not
+ *   an image, too small, or cut short by the site itself) are noted in the
+ *   media manifest, so the next crawl doesn't fetch them again. A download
+ *   cut short on the way keeps its partial file, to resume from instead.
+ *
+ * JPEG, PNG, GIF and WebP are known, anything else is not an image.
+ */
+public class ImageValidator {
+
+  /**
+   * Images with a side shorter than this many pixels are thumbnails (-Dvalidate.minSide).
+   */
+  private static final int MIN_SIDE = Integer.getInteger("validate.minSide", 64);
+
+  /**
+   * Number of threads to validate the dataset with (-Dvalidate.threads). Most of
+   *   the time goes to opening files, so more threads than cores help on SSDs.
+   */
+  private static final int THREADS = Integer.getInteger("validate.threads", 2 * Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Number of bytes needed to tell the known formats apart.
+   */
+  static final int MAGIC_LENGTH = 12;
+
+  /**
+   * Number of bytes read off the start of an image at once. The dimensions
+   *   are nearly always in there, unless a JPEG has a large Exif thumbnail.
+   */
+  private static final int HEAD_LENGTH = 4 * 1024;
+
+  /**
+   * Number of bytes at the end of an image to look for its end marker in,
+   *   since some cameras and editors put data after it.
+   */
+  private static final int TAIL_LENGTH = 1024;
+
+  /**
+   * Problem of a file whose first bytes aren't those of a known format.
+   */
+  static final String NOT_AN_IMAGE = "not an image";
+
+  /**
+   * Problem of an image that ends before its end marker.
+   */
+  private static final String TRUNCATED = "truncated";
+
+  /**
+   * Problem of an image that couldn't be read at all.
+   */
+  private static final String UNREADABLE = "unreadable";
+
+  /**
+   * Returned instead of dimensions, if the header is broken or cut short.
+   */
+  private static final long CORRUPT_HEADER = -1;
+  private static final long TRUNCATED_HEADER = -2;
+
+  private enum Format { JPEG, PNG, GIF, WEBP }
+
+  private ImageValidator() { }
+
+  /**
+   * Validate all images, quarantining the ones that fail.
+   * @param quarantineDir to move failed images to (one subdirectory per label)
+   * @param imageDirs to validate (one subdirectory per label)
+   */
+  public static void validateAll(final File quarantineDir, final File... imageDirs) {
+    final long start = System.nanoTime();
+    final List<File> images = new ArrayList<>();
+    for (File imageDir : imageDirs) {
+      if (!imageDir.isDirectory()) continue;
+      for (File labelDir : Objects.requireNonNull(imageDir.listFiles())) {
+        final File[] files = labelDir.listFiles();
+        if (files == null) continue;
+        for (File file : files) if (file.isFile() && !file.getName().endsWith(".part")) images.add(file);
+      }
+    }
+    System.out.println("Validating " + images.size() + " images");
+
+    final Map<String, AtomicInteger> numPerProblem = new ConcurrentHashMap<>();
+    final ForkJoinPool pool = new ForkJoinPool(THREADS);
+    try {
+      pool.submit(() -> images.parallelStream().forEach(image -> {
+        final String problem = problemOf(image);
+        if (problem == null) return;
+        final File labelDir = image.getParentFile();
+        quarantine(image, new File(quarantineDir.getPath() + "\\" + labelDir.getName() + "\\" + image.getName()), problem);
+        numPerProblem.computeIfAbsent(problem.split(" \\(")[0], p -> new AtomicInteger()).incrementAndGet();
+      })).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.err.println("Interrupted validating images");
+    } catch (ExecutionException e) {
+      System.err.println("Error validating images: " + e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+
+    int numQuarantined = 0;
+    for (AtomicInteger count : numPerProblem.values()) numQuarantined += count.get();
+    System.out.println("Validated " + images.size() + " images in " + (System.nanoTime() - start) / 1_000_000 + " ms, quarantined "
+      + numQuarantined + (numQuarantined == 0 ? "" : " " + new TreeMap<>(numPerProblem)));
+  }
+
+  /**
+   * Move an image that failed validation out of the dataset.
+   * @param image to move
+   * @param target to move it to
+   * @param problem of the image
+   */
+  static void quarantine(final File image, final File target, final String problem) {
+    try {
+      target.getParentFile().mkdirs();
+      Files.move(image.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      ScraperMetrics.get().count(ScraperMetrics.QUARANTINED, 1);
+      System.err.println("Quarantined " + target.getPath() + ": " + problem);
+    } catch (IOException e) {
+      System.err.println("Error quarantining " + image.getPath() + " (" + problem + "): " + e);
+    }
+  }
+
+  /**
+   * Tell the format of an image by its first bytes.
+   * @param bytes from the start of the image, at least MAGIC_LENGTH of them remaining
+   * @return true if they're those of a known format
+   */
+  static boolean isImage(final ByteBuffer bytes) {
+    return formatOf(new ImageFile(bytes, bytes.remaining())) != null;
+  }
+
+  /**
+   * What validating an image found.
+   */
+  static final class Check {
+    final String problem;
+    final int width;
+    final int height;
+
+    Check(final String problem, final int width, final int height) {
+      this.problem = problem;
+      this.width = width;
+      this.height = height;
+    }
+
+    /**
+     * @param transferComplete whether all of the file as sent was received
+     * @return true if downloading the image again won't fix its problem
+     */
+    boolean isPermanent(final boolean transferComplete) {
+      if (problem.startsWith(UNREADABLE)) return false;
+      return transferComplete || !TRUNCATED.equals(problem);
+    }
+  }
+
+  /**
+   * Check an image.
+   * @param image to check
+   * @return what's wrong with the image, or null if nothing is
+   */
+  static String problemOf(final File image) {
+    return check(image).problem;
+  }
+
+  /**
+   * Check an image.
+   * @param image to check
+   * @return what's wrong with the image, if anything, and its dimensions, if they're known
+   */
+  static Check check(final File image) {
+    try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+      return check(new ImageFile(channel));
+    } catch (IOException e) {
+      return new Check(UNREADABLE + " (" + e.getMessage() + ")", 0, 0);
+    }
+  }
+
+  private static Check check(final ImageFile image) throws IOException {
+    final Format format = formatOf(image);
+    if (format == null) return new Check(NOT_AN_IMAGE, 0, 0);
+
+    final long dimensions;
+    final boolean complete;
+    switch (format) {
+      case JPEG:
+        dimensions = jpegDimensions(image);
+        complete = image.tailContains(0xFF, 0xD9);
+        break;
+      case PNG:
+        dimensions = pngDimensions(image);
+        complete = image.tailContains(0x49, 0x45, 0x4E, 0x44, 0xAE, 0x42, 0x60, 0x82);
+        break;
+      case GIF:
+        dimensions = image.has(6, 4) ? dimensions(image.u16le(6), image.u16le(8)) : TRUNCATED_HEADER;
+        complete = image.endsWith(0x3B);
+        break;
+      default:
+        dimensions = webpDimensions(image);
+        complete = image.u32le(4) + 8 <= image.size;
+    }
+    if (dimensions == TRUNCATED_HEADER) return new Check(TRUNCATED, 0, 0);
+    if (dimensions == CORRUPT_HEADER) return new Check("corrupt " + format + " header", 0, 0);
+
+    final int width = (int) (dimensions >>> 32);
+    final int height = (int) dimensions;
+    if (!complete) return new Check(TRUNCATED, width, height);
+    if (width < MIN_SIDE || height < MIN_SIDE) return new Check("too small (" + width + "x" + height + ")", width, height);
+    return new Check(null, width, height);
+  }
+
+  private static Format formatOf(final ImageFile image) {
+    if (!image.has(0, MAGIC_LENGTH)) return null;
+    if (image.at(0) == 0xFF && image.at(1) == 0xD8 && image.at(2) == 0xFF) return Format.JPEG;
+    if (image.u32be(0) == 0x89504E47L && image.u32be(4) == 0x0D0A1A0AL) return Format.PNG;
+    if (image.u32be(0) == 0x47494638L && (image.at(4) == '7' || image.at(4) == '9') && image.at(5) == 'a') return Format.GIF;
+    if (image.u32be(0) == 0x52494646L && image.u32be(8) == 0x57454250L) return Format.WEBP;
+    return null;
+  }
+
+  /**
+   * Walk the segments of a JPEG up to the frame header, which has the dimensions.
+   */
+  private static long jpegDimensions(final ImageFile image) {
+    long position = 2;
+    while (true) {
+      if (!image.has(position, 4)) return TRUNCATED_HEADER;
+      if (image.at(position) != 0xFF) return CORRUPT_HEADER;
+      final int marker = image.at(position + 1);
+
+      // fill byte, or a marker without a segment
+      if (marker == 0xFF) {
+        position++;
+        continue;
+      }
+      if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+        position += 2;
+        continue;
+      }
+
+      // image data or end of image before a frame header
+      if (marker == 0xDA || marker == 0xD9) return CORRUPT_HEADER;
+
+      final int length = image.u16be(position + 2);
+      if (length < 2) return CORRUPT_HEADER;
+      if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+        if (!image.has(position + 5, 4)) return TRUNCATED_HEADER;
+        return dimensions(image.u16be(position + 7), image.u16be(position + 5));
+      }
+      position += 2 + length;
+    }
+  }
+
+  /**
+   * Read the dimensions off the header chunk of a PNG, which always comes first.
+   */
+  private static long pngDimensions(final ImageFile image) {
+    if (!image.has(16, 8)) return TRUNCATED_HEADER;
+    if (image.u32be(12) != 0x49484452L) return CORRUPT_HEADER;
+    return dimensions(image.u32be(16), image.u32be(20));
+  }
+
+  /**
+   * Read the dimensions off the first chunk of a WebP, which depend on its kind.
+   */
+  private static long webpDimensions(final ImageFile image) {
+    if (!image.has(12, 18)) return TRUNCATED_HEADER;
+    final long chunk = image.u32be(12);
+    if (chunk == 0x56503820L) {
+      if (image.at(23) != 0x9D || image.at(24) != 0x01 || image.at(25) != 0x2A) return CORRUPT_HEADER;
+      return dimensions(image.u16le(26) & 0x3FFF, image.u16le(28) & 0x3FFF);
+    }
+    if (chunk == 0x5650384CL) {
+      if (image.at(20) != 0x2F) return CORRUPT_HEADER;
+      final long bits = image.u32le(21);
+      return dimensions((bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1);
+    }
+    if (chunk == 0x56503858L) return dimensions(image.u24le(24) + 1, image.u24le(27) + 1);
+    return CORRUPT_HEADER;
+  }
+
+  private static long dimensions(final long width, final long height) {
+    if (width == 0 || height == 0 || width > Integer.MAX_VALUE || height > Integer.MAX_VALUE) return CORRUPT_HEADER;
+    return width << 32 | height;
+  }
+
+  /**
+   * The parts of an image that validation reads: the head, read at once,
+   *   anything further in, read as needed, and the tail.
+   */
+  private static final class ImageFile {
+    private final FileChannel channel;
+    private final ByteBuffer head;
+    private final ByteBuffer scratch = ByteBuffer.allocate(1);
+    final long size;
+
+    /**
+     * An image on disk.
+     */
+    ImageFile(final FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      this.head = ByteBuffer.allocate((int) Math.min(size, HEAD_LENGTH));
+      while (head.hasRemaining() && channel.read(head, head.position()) >= 0) { }
+      head.flip();
+    }
+
+    /**
+     * The first bytes of an image being downloaded.
+     */
+    ImageFile(final ByteBuffer bytes, final long size) {
+      this.channel = null;
+      this.head = bytes.slice();
+      this.size = size;
+    }
+
+    /**
+     * @return true if the image has a number of bytes at a position
+     */
+    boolean has(final long position, final int length) {
+      return position >= 0 && position + length <= size;
+    }
+
+    /**
+     * @return the byte at a position, or -1 if it can't be read
+     */
+    int at(final long position) {
+      if (position < head.limit()) return head.get((int) position) & 0xFF;
+      if (channel == null || position >= size) return -1;
+      try {
+        scratch.clear();
+        return channel.read(scratch, position) == 1 ? scratch.get(0) & 0xFF : -1;
+      } catch (IOException e) {
+        return -1;
+      }
+    }
+
+    int u16be(final long position) {
+      return at(position) << 8 | at(position + 1);
+    }
+
+    int u16le(final long position) {
+      return at(position) | at(position + 1) << 8;
+    }
+
+    long u24le(final long position) {
+      return at(position) | at(position + 1) << 8 | (long) at(position + 2) << 16;
+    }
+
+    long u32be(final long position) {
+      return (long) u16be(position) << 16 | u16be(position + 2);
+    }
+
+    long u32le(final long position) {
+      return u16le(position) | (long) u16le(position + 2) << 16;
+    }
+
+    /**
+     * @param marker bytes to look for
+     * @return true if the image ends with the marker, not counting zeros after it
+     */
+    boolean endsWith(final int... marker) throws IOException {
+      final ByteBuffer tail = tail();
+      int end = tail.limit();
+      while (end > 0 && tail.get(end - 1) == 0) end--;
+      return end >= marker.length && matches(tail, end - marker.length, marker);
+    }
+
+    /**
+     * @param marker bytes to look for
+     * @return true if the marker is anywhere in the tail
+     */
+    boolean tailContains(final int... marker) throws IOException {
+      final ByteBuffer tail = tail();
+      for (int start = tail.limit() - marker.length; start >= 0; start--) {
+        if (matches(tail, start, marker)) return true;
+      }
+      return false;
+    }
+
+    private ByteBuffer tail() throws IOException {
+      final int length = (int) Math.min(size, TAIL_LENGTH);
+      final ByteBuffer tail = ByteBuffer.allocate(length);
+      final long from = size - length;
+      if (from < head.limit()) {
+        for (int i = 0; i < length; i++) tail.put(i, (byte) at(from + i));
+      } else {
+        while (tail.hasRemaining() && channel.read(tail, from + tail.position()) >= 0) { }
+      }
+      return tail;
+    }
+
+    private static boolean matches(final ByteBuffer bytes, final int start, final int... marker) {
+      for (int i = 0; i < marker.length; i++) {
+        if ((bytes.get(start + i) & 0xFF) != marker[i]) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * On-disk set of Arachnoboards media IDs that don't need to be scraped
+ *   again, either because the image was downloaded or because it was
+ *   deliberately skipped (i.e. tagged sexing, or quarantined as broken).
+ *
+ * The file is a flat list of 4 byte IDs that is only ever appended to,
+ *   and is read into a bit set at startup. Checking an ID needs no
+ *   request at all, so known media cost nothing on a re-crawl.
+ */
+class MediaManifest {
+
+  /**
+   * Media ID at the end of a thumbnail href or image file name,
+   *   i.e. media/all-my-ts.56010/ or all-my-ts_56010.jpeg
+   */
+  private static final Pattern MEDIA_ID = Pattern.compile("[._](\\d+)(/|\\.\\w+)?$");
+
+  /**
+   * Manifest file.
+   */
+  private final File file;
+
+  /**
+   * Known media IDs.
+   */
+  private final BitSet known = new BitSet();
+
+  /**
+   * Channel appending to the manifest file.
+   */
+  private final FileChannel out;
+
+  /**
+   * Guards the known IDs and the file, without pinning the carrier of a
+   *   virtual thread that waits while another appends.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Load a manifest, or seed a new one from images already on disk.
+   * @param file of the manifest
+   * @param imageDirs to seed a new manifest from (one subdirectory per species)
+   * @throws IOException if the manifest can't be read or created
+   */
+  MediaManifest(final File file, final File... imageDirs) throws IOException {
+    this.file = file;
+    final boolean exists = file.exists();
+    this.out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    if (exists) {
+      load();
+    } else {
+      for (File imageDir : imageDirs) seed(imageDir);
+    }
+    out.position(out.size());
+    System.out.println("Media manifest " + file.getPath() + " knows " + known.cardinality() + " images");
+  }
+
+  /**
+   * Get the media ID from a thumbnail href or image file name.
+   * @param path to get ID from
+   * @return the ID, or -1 if there is none
+   */
+  static int mediaId(final String path) {
+    final Matcher matcher = MEDIA_ID.matcher(path);
+    if (!matcher.find()) return -1;
+    try {
+      return Integer.parseInt(matcher.group(1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Check if a media ID is known.
+   * @param id to check
+   * @return true if the media doesn't need to be scraped again
+   */
+  boolean contains(final int id) {
+    lock.lock();
+    try {
+      return id >= 0 && known.get(id);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add a media ID, appending it to the manifest file if it's new.
+   * @param id to add
+   */
+  void add(final int id) {
+    lock.lock();
+    try {
+      if (id < 0 || known.get(id)) return;
+      known.set(id);
+      append(id);
+    } catch (IOException e) {
+      System.err.println("Error writing media " + id + " to manifest " + file.getPath() + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add all IDs of another manifest, i.e. a shard's.
+   * @param other manifest file
+   * @throws IOException if the other manifest can't be read
+   */
+  void addAll(final File other) throws IOException {
+    lock.lock();
+    try {
+      final ByteBuffer ids = ByteBuffer.wrap(Files.readAllBytes(other.toPath()));
+      while (ids.remaining() >= 4) add(ids.getInt());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Close the manifest file.
+   */
+  void close() {
+    lock.lock();
+    try {
+      out.close();
+    } catch (IOException e) {
+      System.err.println("Error closing media manifest " + file.getPath() + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Read all IDs in the manifest file.
+   * A partially written trailing ID (i.e. from a crash) is ignored.
+   * @throws IOException if reading fails
+   */
+  private void load() throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) (out.size() - out.size() % 4));
+    while (buffer.hasRemaining() && out.read(buffer) >= 0) { }
+    buffer.flip();
+    while (buffer.remaining() >= 4) known.set(buffer.getInt());
+    out.truncate(buffer.limit());
+  }
+
+  /**
+   * Add the IDs of all images in a directory of species directories.
+   * @param imageDir to scan
+   * @throws IOException if writing fails
+   */
+  private void seed(final File imageDir) throws IOException {
+    if (!imageDir.isDirectory()) return;
+    for (File speciesDir : Objects.requireNonNull(imageDir.listFiles())) {
+      final File[] images = speciesDir.listFiles();
+      if (images == null) continue;
+      for (File image : images) {
+        final int id = mediaId(image.getName());
+        if (id >= 0 && !known.get(id)) {
+          known.set(id);
+          append(id);
+        }
+      }
+    }
+  }
+
+  /**
+   * Append an ID to the manifest file.
+   * @param id to append
+   * @throws IOException if writing fails
+   */
+  private void append(final int id) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, id);
+    while (buffer.hasRemaining()) out.write(buffer);
+  }
+}
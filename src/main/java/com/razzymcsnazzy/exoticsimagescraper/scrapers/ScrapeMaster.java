@@ -2,9 +2,13 @@ package com.razzymcsnazzy.exoticsimagescraper.scrapers;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Small app to scrape tarantula images off of
@@ -18,14 +22,47 @@ import java.util.concurrent.Executors;
 public class ScrapeMaster {
 
   /**
-   * Shutdown flag to be set when last species is being scraped.
+   * Number of threads walking tag listing pages, one ListingWalk at a time.
+   * With -Dscraper.threads=virtual, every walk gets a virtual thread of its own instead.
    */
-  private static Boolean shutdownScraper = false;
+  private static final int LISTING_THREADS = Integer.getInteger("scraper.listingThreads", 10);
 
   /**
-   * Counter for number of species actually scraped.
+   * Number of threads fetching gallery pages. This is only an upper bound,
+   *   the number of requests actually in flight is set per host by HostThrottle.
    */
-  private static Integer numSpecies = 0;
+  private static final int GALLERY_THREADS = Integer.getInteger("scraper.galleryThreads", 32);
+
+  /**
+   * Number of threads downloading images. Also only an upper bound.
+   */
+  private static final int DOWNLOAD_THREADS = Integer.getInteger("scraper.downloadThreads", 64);
+
+  /**
+   * Max number of tasks queued in front of each pipeline stage.
+   */
+  private static final int STAGE_QUEUE_CAPACITY = Integer.getInteger("scraper.stageQueueCapacity", 500);
+
+  /**
+   * Order to walk tags in (-Dscraper.schedule): by cost, largest tags first and split up
+   *   (see ABTagsScrapeWorker), or alphabetical, one walk per name.
+   */
+  private static final boolean BY_COST = !"alphabetical".equals(System.getProperty("scraper.schedule", "cost"));
+
+  /**
+   * Number of shards to divide the species into, to crawl with several processes (see ShardedCrawl).
+   */
+  private static final int SHARDS = Integer.getInteger("scraper.shards", 1);
+
+  /**
+   * Files of a crawl's state, in the image root or a shard's directory.
+   */
+  static final String MANIFEST = "ab-media-manifest";
+  static final String JOURNAL = "ab-crawl-journal";
+  static final String INDEX = "image-index";
+  static final String CONFLICTS = "label-conflicts.tsv";
+  static final String COSTS = "crawl-costs.tsv";
+  static final String TAGS = "image-tags";
 
   /**
    * Tarantula species with synonyms.
@@ -33,63 +70,124 @@ public class ScrapeMaster {
   private Map<String, List<String>> speciesWithSynonyms;
 
   /**
-   * The last species name in speciesWithSynonyms
+   * Labels of the tags met on the way.
    */
-  private String lastSpeciesName;
+  private final SpeciesLabels labels;
 
   /**
    * Constructor.
+   * @param speciesWithSynonyms to scrape
+   * @param labels to pick labels of images tagged with several species by
    */
-  public ScrapeMaster(final SortedMap<String, List<String>> speciesWithSynonyms) {
+  public ScrapeMaster(final SortedMap<String, List<String>> speciesWithSynonyms, final SpeciesLabels labels) {
     this.speciesWithSynonyms = speciesWithSynonyms;
-
-    // get the last species name from the map
-    final String lastSpecies = speciesWithSynonyms.lastKey();
-    final List<String> synonyms = speciesWithSynonyms.get(lastSpecies);
-    this.lastSpeciesName = synonyms.isEmpty() ? lastSpecies : synonyms.get(synonyms.size() - 1);
+    this.labels = labels;
   }
 
   /**
-   * Set shutdown flag.
+   * Scrape images for each species (incl. synonyms) from Arachnoboards tags.
+   * Returns as soon as the last species is done, or with -Dscraper.shards,
+   *   once the shards of all nodes are done and merged.
+   * @return outcome of each species this process scraped
+   * @throws IOException if the media manifest, crawl journal or image index can't be opened
    */
-  static void shutdown() { shutdownScraper = true; }
-
+  public ScrapeResult scrapeABTags() throws IOException {
+    final File imageRoot = new File(System.getProperty("user.dir") + "\\images");
+    if (SHARDS > 1) return new ShardedCrawl(this, imageRoot, SHARDS).run(speciesWithSynonyms);
+    return crawl(speciesWithSynonyms, imageRoot, null);
+  }
 
   /**
-   * Increment number of species scraped.
+   * @return file to write this process' metrics to, one per node of a sharded crawl
    */
-  static void incrementNumSpecies() { numSpecies++; }
+  public static File metricsFile() {
+    final String imageRoot = System.getProperty("user.dir") + "\\images";
+    return new File(imageRoot + (SHARDS > 1 ? "\\metrics-" + ShardedCrawl.NODE + ".json" : "\\metrics.json"));
+  }
 
   /**
-   * Scrape images for each species (incl. synonyms) from Arachnoboards tags.
+   * Scrape images for some species.
+   * @param species to scrape, with their synonyms
+   * @param stateDir to keep the media manifest, crawl journal and image index in
+   * @param lease of the shard being crawled, or null if it's the whole crawl
+   * @return outcome of each species
+   * @throws IOException if the media manifest, crawl journal or image index can't be opened
    */
-  public void scrapeABTags() {
-    System.out.println("Start scraping at " + new Date());
-
-    final ExecutorService scraper = Executors.newFixedThreadPool(10, new ThreadFactoryBuilder().setNameFormat("Scraper Thread %d").build());
-    for (String species : speciesWithSynonyms.keySet()) {
+  ScrapeResult crawl(final Map<String, List<String>> species, final File stateDir, final FileLeases.Lease lease)
+    throws IOException {
+    final Date start = new Date();
+    System.out.println("Start scraping" + (lease == null ? "" : " " + lease.task) + " at " + start);
+
+    final String imageRoot = System.getProperty("user.dir") + "\\images";
+    final String state = stateDir.getPath();
+    final MediaManifest manifest = new MediaManifest(
+      new File(state + "\\" + MANIFEST),
+      new File(imageRoot + "\\all"),
+      new File(imageRoot + "\\new"));
+    final CrawlJournal journal = new CrawlJournal(new File(state + "\\" + JOURNAL));
+    final ImageIndex imageIndex = new ImageIndex(
+      new File(state + "\\" + INDEX),
+      new File(state + "\\" + CONFLICTS),
+      new File(imageRoot + "\\all"),
+      new File(imageRoot + "\\new"));
+
+    final CrawlPipeline pipeline = new CrawlPipeline(GALLERY_THREADS, DOWNLOAD_THREADS, STAGE_QUEUE_CAPACITY);
+    final CrawlCosts costs = new CrawlCosts(new File(state + "\\" + COSTS));
+    final ImageTags imageTags = new ImageTags(new File(state + "\\" + TAGS));
+    final CrawlContext context = new CrawlContext(pipeline, manifest, journal, imageIndex, imageTags, new CrawlFrontier(labels),
+      costs, lease);
+    final ExecutorService scraper = VirtualThreads.isEnabled()
+      ? VirtualThreads.newPerTaskExecutor("Scraper Thread ")
+      : Executors.newFixedThreadPool(LISTING_THREADS, new ThreadFactoryBuilder().setNameFormat("Scraper Thread %d").build());
+    final List<CompletableFuture<SpeciesOutcome>> outcomes = new ArrayList<>();
+    final List<ABTagsScrapeWorker.ListingWalk> walks = new ArrayList<>();
+    final AtomicInteger numSpeciesDone = new AtomicInteger();
+    for (String label : species.keySet()) {
       final List<String> nameAndSynonyms = new ArrayList<>();
-      nameAndSynonyms.add(species);
-      nameAndSynonyms.addAll(speciesWithSynonyms.get(species));
-      scraper.execute(new ABTagsScrapeWorker(species, nameAndSynonyms, lastSpeciesName));
+      nameAndSynonyms.add(label);
+      nameAndSynonyms.addAll(species.get(label));
+      final ABTagsScrapeWorker worker = new ABTagsScrapeWorker(label, nameAndSynonyms, context);
+      outcomes.add(worker.completion.whenComplete((outcome, e) -> numSpeciesDone.incrementAndGet()));
+      walks.addAll(worker.walks(BY_COST));
     }
 
-    // await scraper shutdown
-    while (!shutdownScraper) {
-      try { Thread.sleep(10000); }
-      catch (InterruptedException e) {
-        System.err.println("Main thread interrupted: " + e.getMessage());
-      }
+    // largest walks first, so none is left to run alone at the end (ties stay alphabetical)
+    if (BY_COST) walks.sort(Comparator.comparingInt(ABTagsScrapeWorker.ListingWalk::getEstimatedPages).reversed());
+    long estimatedPages = 0;
+    for (ABTagsScrapeWorker.ListingWalk walk : walks) {
+      estimatedPages += walk.getEstimatedPages();
+      scraper.execute(walk);
     }
-    scraper.shutdown();
-
-    // await scraper termination
-    while (!scraper.isTerminated()) {
-      try { Thread.sleep(10000); }
+    System.out.println("Scheduled " + walks.size() + " listing walks of about " + estimatedPages + " pages"
+      + (BY_COST ? ", largest first" : ", alphabetically"));
+
+    // await last species, then let the (by now idle) stages stop
+    // a species that failed fails the crawl, and one with failures leaves it incomplete,
+    // either way keeping the journal to resume from
+    boolean complete = false;
+    try {
+      CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0])).join();
+      complete = true;
+      for (CompletableFuture<SpeciesOutcome> outcome : outcomes) complete &= outcome.join().isComplete();
+    } finally {
+      scraper.shutdown();
+      try { pipeline.shutdown(); }
       catch (InterruptedException e) {
         System.err.println("Main thread interrupted: " + e.getMessage());
       }
+      manifest.close();
+      if (complete) journal.complete();
+      else journal.close();
+      imageIndex.close();
+      imageTags.close();
+      costs.save();
     }
-    System.out.println("Done scraping " + numSpecies + " at " + new Date());
+
+    final List<SpeciesOutcome> done = new ArrayList<>();
+    for (CompletableFuture<SpeciesOutcome> outcome : outcomes) done.add(outcome.join());
+    final ScrapeResult result = new ScrapeResult(start, new Date(), done);
+    System.out.println("Done scraping " + numSpeciesDone.get() + " species (" + result.getNumImages() + " new images, "
+      + result.getNumIncomplete() + " with failures) at " + result.getEnd());
+    return result;
   }
 }
@@ -0,0 +1,90 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a scraper run came to, per species.
+ */
+public class ScrapeResult {
+
+  /**
+   * When scraping started.
+   */
+  private final Date start;
+
+  /**
+   * When the last species was done.
+   */
+  private final Date end;
+
+  /**
+   * Outcome of each species, by label.
+   */
+  private final Map<String, SpeciesOutcome> outcomes;
+
+  /**
+   * Whether this run is the one to finish the dataset, i.e. it wasn't one of
+   *   several nodes of a sharded crawl, or it was the one that merged their shards.
+   */
+  private final boolean finishesDataset;
+
+  ScrapeResult(final Date start, final Date end, final Iterable<SpeciesOutcome> outcomes) {
+    this(start, end, outcomes, true);
+  }
+
+  ScrapeResult(final Date start, final Date end, final Iterable<SpeciesOutcome> outcomes, final boolean finishesDataset) {
+    this.start = start;
+    this.end = end;
+    this.finishesDataset = finishesDataset;
+    final Map<String, SpeciesOutcome> byLabel = new TreeMap<>();
+    for (SpeciesOutcome outcome : outcomes) byLabel.put(outcome.getSpeciesLabel(), outcome);
+    this.outcomes = Collections.unmodifiableMap(byLabel);
+  }
+
+  public Date getStart() { return start; }
+
+  public Date getEnd() { return end; }
+
+  public Map<String, SpeciesOutcome> getOutcomes() { return outcomes; }
+
+  /**
+   * @return true if the dataset is complete after this run: this run finishes
+   *   it, and no species had failures that a later run has to make up for
+   */
+  public boolean isDatasetComplete() { return finishesDataset && getNumIncomplete() == 0; }
+
+  /**
+   * @return true if this run finishes the dataset, complete or not
+   */
+  public boolean finishesDataset() { return finishesDataset; }
+
+  /**
+   * @return total number of new images scraped
+   */
+  public int getNumImages() {
+    int sum = 0;
+    for (SpeciesOutcome outcome : outcomes.values()) sum += outcome.getNumImages();
+    return sum;
+  }
+
+  /**
+   * @return total number of bytes downloaded
+   */
+  public long getNumBytes() {
+    long sum = 0;
+    for (SpeciesOutcome outcome : outcomes.values()) sum += outcome.getNumBytes();
+    return sum;
+  }
+
+  /**
+   * @return number of species that had failures
+   */
+  public int getNumIncomplete() {
+    int sum = 0;
+    for (SpeciesOutcome outcome : outcomes.values()) if (!outcome.isComplete()) sum++;
+    return sum;
+  }
+}
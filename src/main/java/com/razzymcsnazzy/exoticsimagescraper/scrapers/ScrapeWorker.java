@@ -1,25 +1,81 @@
 package com.razzymcsnazzy.exoticsimagescraper.scrapers;
 
-import org.jsoup.Connection;
+import com.razzymcsnazzy.exoticsimagescraper.http.HostThrottle;
+import com.razzymcsnazzy.exoticsimagescraper.http.Recorder;
+import com.razzymcsnazzy.exoticsimagescraper.http.Retries;
+import com.razzymcsnazzy.exoticsimagescraper.http.Transport;
+import com.razzymcsnazzy.exoticsimagescraper.metrics.ScraperMetrics;
 import org.jsoup.HttpStatusException;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 abstract class ScrapeWorker implements Runnable {
 
+  /**
+   * Size of the buffer images are streamed to disk through.
+   */
+  private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Buffers images are streamed to disk through. Pooled rather than kept per
+   *   thread, since on virtual threads every download is a new thread.
+   */
+  private static final Queue<ByteBuffer> TRANSFER_BUFFERS = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Returned by downloadImage if the image was skipped as a duplicate of one we already have.
+   */
+  static final long DUPLICATE = -2;
+
+  /**
+   * Returned by downloadImage if the image was moved to quarantine, so it's not worth downloading again.
+   */
+  static final long QUARANTINED = -3;
+
+  /**
+   * Returned by downloadImage if the image is already in images/all, so it's not downloaded again.
+   */
+  static final long EXISTING = -4;
+
+  /**
+   * Whether duplicates are stored as hard links (-Dscraper.dedupe=link) instead of skipped.
+   */
+  static final boolean LINK_DUPLICATES = "link".equals(System.getProperty("scraper.dedupe", "skip"));
+
   /**
    * Root URL.
    */
   private String root;
 
+  /**
+   * Everything the workers of the crawl share.
+   */
+  final CrawlContext context;
+
   /**
    * Label of tarantula species to tag images with.
    */
@@ -31,9 +87,9 @@ abstract class ScrapeWorker implements Runnable {
   List<String> speciesNames;
 
   /**
-   * When this species is scraped, tell scraper to shut down.
+   * Completed with the species' outcome once all of its images have been scraped.
    */
-  String speciesToShutdownOn;
+  final CompletableFuture<SpeciesOutcome> completion = new CompletableFuture<>();
 
   /**
    * Directory to check for existing images.
@@ -48,7 +104,17 @@ abstract class ScrapeWorker implements Runnable {
   /**
    * Number of images scraped.
    */
-  Integer numImages;
+  AtomicInteger numImages;
+
+  /**
+   * Number of bytes downloaded.
+   */
+  AtomicLong numBytes;
+
+  /**
+   * Number of listing pages, gallery pages, listing walks or image downloads that failed.
+   */
+  AtomicInteger numFailed;
 
   /**
    * Number of images that have been scraped previously.
@@ -58,48 +124,163 @@ abstract class ScrapeWorker implements Runnable {
   /**
    * How many images have been scraped per name.
    */
-  TreeMap<String, Integer> imagesPerName;
+  Map<String, AtomicInteger> imagesPerName;
 
-  ScrapeWorker(final String root, final String speciesLabel, final List<String> speciesNames, final String speciesToShutdownOn) {
+  ScrapeWorker(final String root, final String speciesLabel, final List<String> speciesNames, final CrawlContext context) {
     this.root = root;
+    this.context = context;
     this.speciesLabel = speciesLabel;
     this.speciesNames = speciesNames;
-    this.speciesToShutdownOn = speciesToShutdownOn;
-    this.imageDirExisting = new File(System.getProperty("user.dir") + "\\images\\all\\" + speciesLabel);
-    this.imageDirNew = new File(System.getProperty("user.dir") + "\\images\\new\\" + speciesLabel);
-    this.numImages = 0;
+    this.imageDirExisting = imageDir("all", speciesLabel);
+    this.imageDirNew = imageDir("new", speciesLabel);
+    this.numImages = new AtomicInteger();
+    this.numBytes = new AtomicLong();
+    this.numFailed = new AtomicInteger();
     this.numExisting = imageDirExisting.exists() ? Objects.requireNonNull(imageDirExisting.listFiles()).length : 0;
-    this.imagesPerName = new TreeMap<>();
+    this.imagesPerName = new ConcurrentSkipListMap<>();
+  }
+
+  /**
+   * @param set of images, i.e. all or new
+   * @param label of the images
+   * @return directory of the label's images in the set
+   */
+  static File imageDir(final String set, final String label) {
+    return new File(System.getProperty("user.dir") + "\\images\\" + set + "\\" + label);
+  }
+
+  /**
+   * @param path of a page or image
+   * @return its URL
+   */
+  String urlOf(final String path) {
+    return root + path;
+  }
+
+  /**
+   * Wrap up a species once all of its images have been scraped.
+   */
+  void finish() {
+
+    // delete directory, if there are no images
+    try {
+      if (imageDirExisting.exists() && Objects.requireNonNull(imageDirExisting.listFiles()).length == 0) Files.delete(imageDirExisting.toPath());
+    } catch (IOException e) {
+      System.err.println("Error deleting empty directory " + imageDirExisting.getPath() + ": " + e);
+    }
+
+    // show progress
+    this.printProgress(speciesLabel, numImages.get(), numExisting, imagesPerName);
+
+    // let the master know
+    final Map<String, Integer> perName = new TreeMap<>();
+    for (Map.Entry<String, AtomicInteger> e : imagesPerName.entrySet()) perName.put(e.getKey(), e.getValue().get());
+    completion.complete(new SpeciesOutcome(speciesLabel, numImages.get(), numExisting, numBytes.get(), numFailed.get(), perName));
   }
 
   /**
-   * Get a page.
+   * Reads what's needed off a page.
+   */
+  interface PageReader<T> {
+    T read(Transport.Response page) throws IOException;
+  }
+
+  /**
+   * Get a page, retrying if that fails for a reason that may pass.
    * @param path of page to get
-   * @return the page
+   * @return the page, or null if it couldn't be had
    */
   Document getPage(final String path) {
-    final String url = root + path;
+    return getPage(path, Transport.Response::parse);
+  }
+
+  /**
+   * Get what's needed off a page, retrying if that fails for a reason that may pass.
+   * @param path of page to get
+   * @param reader to read the page with
+   * @return what was read, or null if the page couldn't be had
+   */
+  <T> T getPage(final String path, final PageReader<T> reader) {
     try {
-      return Jsoup.connect(url).timeout(999999999).get();
-    } catch (HttpStatusException e) {
-      return null;
+      return fetch(path, reader);
     } catch (IOException e) {
-      System.err.println("Error getting " + url + ": " + e.getMessage());
       return null;
     }
   }
 
+  /**
+   * Get what's needed off a page like getPage, telling a page that isn't
+   *   there apart from one that couldn't be had.
+   * @param path of page to get
+   * @param reader to read the page with
+   * @return what was read, or null if there is no such page
+   * @throws IOException if the page couldn't be had
+   */
+  <T> T fetch(final String path, final PageReader<T> reader) throws IOException {
+    final String url = urlOf(path);
+    try {
+      return Retries.callHedged(url, () -> fetchPage(url, reader));
+    } catch (IOException e) {
+      if (!Thread.currentThread().isInterrupted()) System.err.println("Error getting " + url + ": " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * Fetch and read a page, once.
+   * @param url of page to get
+   * @param reader to read the page with
+   * @return what was read, or null if there is no page
+   * @throws IOException if the page can't be fetched, or the host had a problem
+   */
+  private static <T> T fetchPage(final String url, final PageReader<T> reader) throws IOException {
+    final HostThrottle throttle = HostThrottle.forUrl(url);
+    final long start;
+    try {
+      start = throttle.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + url);
+    }
+
+    HostThrottle.Outcome outcome = HostThrottle.Outcome.ERROR;
+    final ScraperMetrics metrics = ScraperMetrics.get();
+    try (Transport.Response response = Transport.get(url, Collections.emptyMap(), true)) {
+      metrics.stage(ScraperMetrics.FETCH).recordSince(start);
+      throttle.getFetches().recordSince(start);
+      metrics.status(response.statusCode());
+      outcome = HostThrottle.outcomeOf(response.statusCode());
+      if (outcome != HostThrottle.Outcome.SUCCESS) throw new HttpStatusException("HTTP error fetching URL", response.statusCode(), url);
+      if (response.statusCode() >= 400) {
+        Recorder.record(url, response.statusCode(), null, new byte[0]);
+        return null;
+      }
+      if (Recorder.isRecording()) Recorder.record(url, response.statusCode(), response.contentType(), response.bodyAsBytes());
+
+      // the body streams in while it's read, so reading is timed as parsing
+      final long parseStart = System.nanoTime();
+      final T page = reader.read(response);
+      metrics.stage(ScraperMetrics.PARSE).recordSince(parseStart);
+      return page;
+    } catch (IOException e) {
+      outcome = HostThrottle.outcomeOf(e);
+      throw e;
+    } finally {
+      throttle.release(start, outcome);
+    }
+  }
+
   /**
    * Print scraping progress.
    * @param name the currently accepted scientific name
    * @param numImages scraped in total by this worker
    * @param imagesPerName scraped per name (i.e. for synonyms)
    */
-  void printProgress(final String name, final Integer numImages, final Integer numExisting, final TreeMap<String, Integer> imagesPerName) {
+  void printProgress(final String name, final Integer numImages, final Integer numExisting, final Map<String, AtomicInteger> imagesPerName) {
     if (numImages + numExisting > 0) {
       final StringBuilder whatHaveWeScraped = new StringBuilder(String.format(
-        "(%s) Scraped %d new images for %s off %s (%d previously present)",
-        Thread.currentThread().getName(), numImages, name, root, numExisting));
+        "(%s) Scraped %d new images (%,d bytes) for %s off %s (%d previously present)",
+        Thread.currentThread().getName(), numImages, numBytes.get(), name, root, numExisting));
 
       if (numImages > 0) {
         for (Map.Entry e : imagesPerName.entrySet()) {
@@ -115,36 +296,233 @@ abstract class ScrapeWorker implements Runnable {
   }
 
   /**
-   * Download an image.
-   * See https://stackoverflow.com/questions/12465586/how-can-i-download-an-image-using-jsoup.
-   * @param directoryExisting path to check if image already exists
-   * @param directoryNew path to download image to, if it doesn't already exist
+   * Download an image, streaming it to a partial file that is renamed once complete.
+   * The body is never held in memory: it is copied through a fixed size buffer,
+   *   so heap use is the same no matter how large the image is. If an earlier
+   *   attempt left a partial file behind, the transfer resumes where it stopped,
+   *   which is also how a retry picks up after a dropped connection.
+   * @param label to file the image under
+   * @param imageUrl to download image from
+   * @param mediaId of the image
+   * @param source name whose tag the image was found under
+   * @param tags of the image's gallery page
+   * @return number of bytes written for a new image, DUPLICATE, QUARANTINED, EXISTING, or -1 if none was downloaded
+   */
+  long downloadImage(final String label, final String imageUrl, final int mediaId, final String source, final List<String> tags) {
+    final String url = urlOf(imageUrl);
+    try {
+      return Retries.call(() -> tryDownloadImage(label, imageUrl, mediaId, source, tags));
+    } catch (IOException e) {
+      if (!Thread.currentThread().isInterrupted()) System.err.println("An unexpected error occurred downloading " + url + ": " + e.getMessage());
+      numFailed.incrementAndGet();
+      return -1;
+    }
+  }
+
+  /**
+   * Download an image, once.
+   * @param label to file the image under
    * @param imageUrl to download image from
+   * @param mediaId of the image
+   * @param source name whose tag the image was found under
+   * @param tags of the image's gallery page
+   * @return number of bytes written for a new image, DUPLICATE, QUARANTINED, EXISTING, or -1 if none was downloaded
+   * @throws IOException if the download failed
    */
-  Boolean downloadImage(final String directoryExisting, final String directoryNew, final String imageUrl) {
+  private long tryDownloadImage(final String label, final String imageUrl, final int mediaId, final String source,
+                                final List<String> tags) throws IOException {
+    final String directoryExisting = imageDir("all", label).getPath();
+    final String directoryNew = imageDir("new", label).getPath();
+    final String url = urlOf(imageUrl);
+    final String fileName = imageUrl.split("/")[1].replace(".", "_");
+    if (fileName.contains("all-my-ts_56010")) return -1;
+
+    // shards may come across the same image, and a node that lost a shard's lease may still be at it
+    // for a moment next to the one that took it over, so each lease keeps its own partial file
+    final File partial = new File(directoryNew + "\\" + fileName
+      + (context.lease == null ? "" : "." + context.lease.task + "." + context.lease.epoch) + ".part");
+    final long offset = partial.exists() ? partial.length() : 0;
+    final HostThrottle throttle = HostThrottle.forUrl(url);
+    final long start;
     try {
-      final String url = root + imageUrl;
-      final Connection.Response image = Jsoup.connect(url)
-          .timeout(Integer.MAX_VALUE)
-          .ignoreContentType(true)
-          .maxBodySize(Integer.MAX_VALUE)
-          .execute();
+      start = throttle.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + url);
+    }
+
+    long answered = 0;
+    boolean released = false;
+    HostThrottle.Outcome outcome = HostThrottle.Outcome.ERROR;
+    Transport.Response image = null;
+    try {
+      image = Transport.get(url, offset > 0
+        ? Collections.singletonMap("Range", "bytes=" + offset + "-")
+        : Collections.emptyMap(), false);
+      answered = System.nanoTime();
+      outcome = HostThrottle.outcomeOf(image.statusCode());
+      ScraperMetrics.get().status(image.statusCode());
+
+      // partial file is stale or already complete, start over
+      if (image.statusCode() == 416) {
+        image.close();
+        Files.delete(partial.toPath());
+        throttle.release(start, answered, outcome);
+        released = true;
+        return tryDownloadImage(label, imageUrl, mediaId, source, tags);
+      }
+      if (outcome != HostThrottle.Outcome.SUCCESS) {
+        throw new HttpStatusException("HTTP error fetching URL", image.statusCode(), url);
+      }
+      if (image.statusCode() >= 400) {
+        image.close();
+        Recorder.record(url, image.statusCode(), null, new byte[0]);
+        System.err.println(image.statusCode() + " image not found: " + imageUrl);
+        return -1;
+      }
+
       final String extension = image.contentType().split("/")[1];
-      final String pathExisting = directoryExisting + "\\" + imageUrl.split("/")[1].replace(".", "_") + "." + extension;
-      final String pathNew = directoryNew + "\\" + imageUrl.split("/")[1].replace(".", "_") + "." + extension;
+      final String pathExisting = directoryExisting + "\\" + fileName + "." + extension;
+      final String pathNew = directoryNew + "\\" + fileName + "." + extension;
 
       // don't download if image is already present
-      if (new File(pathExisting).exists() || pathExisting.contains("all-my-ts_56010")) return false;
-
-      // download
-      final FileOutputStream out = new FileOutputStream(new File(pathNew));
-      out.write(image.bodyAsBytes());
-      out.close();
-    } catch (HttpStatusException e) {
-      System.err.println("404 image not found: " + imageUrl);
+      if (new File(pathExisting).exists()) {
+        image.close();
+        return EXISTING;
+      }
+
+      // download, appending to the partial file if the server honoured the range
+      final boolean resume = offset > 0 && image.statusCode() == 206;
+      final long expected = image.contentLength();
+      final MessageDigest digest = ImageIndex.newDigest();
+      if (resume) digestPrefix(partial, offset, digest);
+      final long written = streamToFile(image.bodyStream(), partial, resume, digest);
+      ScraperMetrics.get().count(ScraperMetrics.BYTES_DOWNLOADED, Math.max(0, written));
+      ScraperMetrics.get().stage(ScraperMetrics.DOWNLOAD).recordSince(start);
+      if (!resume && written >= 0) Recorder.recordFile(url, image.statusCode(), image.contentType(), partial);
+
+      // done with the host, so checking, hashing and moving the image doesn't hold up its next request
+      image.close();
+      throttle.release(start, answered, outcome);
+      released = true;
+
+      // keep error pages, images the site only has part of and thumbnails out of the dataset, before decoding for the hash;
+      // a body shorter than its length fails in the transport, so only one of unknown length may have been cut off
+      // on the way, and keeps its partial file for the retry or next run to resume
+      final ImageValidator.Check check = written < 0
+        ? new ImageValidator.Check(ImageValidator.NOT_AN_IMAGE, 0, 0)
+        : ImageValidator.check(partial);
+      if (check.problem != null && !check.isPermanent(expected >= 0)) {
+        throw new EOFException("Download of " + url + " is " + check.problem + ", keeping it to resume");
+      }
+      if (check.problem != null) {
+        ImageValidator.quarantine(partial, new File(imageDir("quarantine", label).getPath() + "\\" + fileName + "." + extension), check.problem);
+        return QUARANTINED;
+      }
+
+      // skip or link images we already have
+      final ImageIndex.Entry duplicate = context.imageIndex.add(
+        digest.digest(), ImageIndex.perceptualHash(partial), label, pathNew);
+      if (duplicate != null) {
+        Files.delete(partial.toPath());
+        if (new File(pathNew).exists()) {
+
+          // saved by a run that stopped before it could note the image's tags
+          context.imageTags.add(mediaId, label, source, fileName + "." + extension, check.width, check.height, tags);
+          return DUPLICATE;
+        }
+        if (!LINK_DUPLICATES) return DUPLICATE;
+        Files.createLink(new File(pathNew).toPath(), new File(duplicate.path).toPath());
+        context.imageTags.add(mediaId, label, source, fileName + "." + extension, check.width, check.height, tags);
+        return 0;
+      }
+
+      Files.move(partial.toPath(), new File(pathNew).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      context.imageTags.add(mediaId, label, source, fileName + "." + extension, check.width, check.height, tags);
+      return (resume ? offset : 0) + written;
     } catch (IOException e) {
-      System.err.println("An unexpected error occurred: " + e.getMessage());
+      outcome = HostThrottle.outcomeOf(e);
+      throw e;
+    } finally {
+      if (image != null) image.close();
+      if (!released) throttle.release(start, answered == 0 ? System.nanoTime() : answered, outcome);
+    }
+  }
+
+  /**
+   * Copy a stream to a file through a pooled transfer buffer.
+   * @param body to copy (closed when done)
+   * @param file to write to
+   * @param append to the file instead of overwriting it
+   * @param digest to update with every byte written
+   * @return number of bytes written, or -1 if the first bytes weren't those of an image, and the rest wasn't read
+   * @throws IOException if reading or writing fails
+   */
+  private static long streamToFile(final InputStream body, final File file, final boolean append,
+                                   final MessageDigest digest) throws IOException {
+    final ByteBuffer buffer = borrowBuffer();
+    long written = 0;
+    long writeNanos = 0;
+    try (ReadableByteChannel in = Channels.newChannel(body);
+         FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+           append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer.clear();
+      while (in.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer.duplicate());
+
+        // an error page served as an image is told by its first bytes, no need to read the rest
+        final boolean image = append || written > 0 || buffer.remaining() < ImageValidator.MAGIC_LENGTH
+          || ImageValidator.isImage(buffer);
+        final long writeStart = System.nanoTime();
+        while (buffer.hasRemaining()) written += out.write(buffer);
+        writeNanos += System.nanoTime() - writeStart;
+        if (!image) {
+          written = -1;
+          break;
+        }
+        buffer.clear();
+      }
+    } finally {
+      TRANSFER_BUFFERS.offer(buffer);
     }
-    return true;
+    ScraperMetrics.get().stage(ScraperMetrics.DISK_WRITE).record(writeNanos);
+    return written;
+  }
+
+  /**
+   * Update a digest with the part of an image that was downloaded before, when resuming.
+   * @param partial file of the image
+   * @param length of the part to digest
+   * @param digest to update
+   * @throws IOException if reading fails
+   */
+  private static void digestPrefix(final File partial, final long length, final MessageDigest digest) throws IOException {
+    final ByteBuffer buffer = borrowBuffer();
+    try (FileChannel in = FileChannel.open(partial.toPath(), StandardOpenOption.READ)) {
+      long remaining = length;
+      buffer.clear();
+      while (remaining > 0) {
+        if (buffer.remaining() > remaining) buffer.limit((int) remaining);
+        final int read = in.read(buffer);
+        if (read < 0) break;
+        remaining -= read;
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    } finally {
+      TRANSFER_BUFFERS.offer(buffer);
+    }
+  }
+
+  /**
+   * @return a cleared transfer buffer, to offer back to the pool when done
+   */
+  private static ByteBuffer borrowBuffer() {
+    final ByteBuffer buffer = TRANSFER_BUFFERS.poll();
+    if (buffer == null) return ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+    buffer.clear();
+    return buffer;
   }
 }
@@ -0,0 +1,416 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster.CONFLICTS;
+import static com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster.COSTS;
+import static com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster.INDEX;
+import static com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster.JOURNAL;
+import static com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster.MANIFEST;
+import static com.razzymcsnazzy.exoticsimagescraper.scrapers.ScrapeMaster.TAGS;
+
+/**
+ * A crawl shared by several scraper processes (-Dscraper.shards=16 on each),
+ *   on one machine or several, that have nothing in common but the images
+ *   directory.
+ *
+ * Whichever node gets there first divides the species into shards of about
+ *   equal cost (see CrawlCosts) and writes them to a plan. Every node then
+ *   takes shards under FileLeases, largest first, and crawls each with a media
+ *   manifest, image index and journal of its own, copied from the dataset's.
+ *   Images go straight to the shared image directories. A shard whose node
+ *   died is taken over once its lease expires, and resumes from the dead
+ *   node's journal. A node that was only stalled stops crawling the shard as
+ *   soon as it finds its lease taken over.
+ *
+ * Once all shards are done, one node merges their manifests, image indexes,
+ *   image tags, label conflicts and costs into the dataset's, dropping images that more
+ *   than one shard downloaded, and carries on with post processing while the
+ *   others stop.
+ *
+ * All nodes of a crawl must be given the same -Dscraper.crawl (the date in
+ *   UTC, by default), which names its directory under images\crawl. Each
+ *   node throttles requests per host on its own, so N nodes ask a host up to
+ *   N times as much.
+ */
+class ShardedCrawl {
+
+  /**
+   * Name of this node (-Dscraper.node), by default its process ID and host.
+   */
+  static final String NODE = System.getProperty("scraper.node", ManagementFactory.getRuntimeMXBean().getName());
+
+  /**
+   * Name of the crawl, shared by all of its nodes.
+   */
+  private static final String CRAWL = System.getProperty("scraper.crawl", today());
+
+  /**
+   * Time to wait before looking at the leases of other nodes again.
+   */
+  private static final long POLL_MILLIS = Long.getLong("scraper.lease.pollMillis", 1000L);
+
+  /**
+   * Tasks done once per crawl, before and after the shards.
+   */
+  private static final String PLAN = "plan";
+  private static final String MERGE = "merge";
+
+  /**
+   * Work done under a lease.
+   */
+  private interface Task {
+    String run() throws IOException;
+  }
+
+  private final ScrapeMaster master;
+  private final File imageRoot;
+  private final int numShards;
+
+  /**
+   * Directory of the crawl, and the leases in it.
+   */
+  private final File dir;
+  private final FileLeases leases;
+
+  /**
+   * Constructor.
+   * @param master to crawl each shard with
+   * @param imageRoot of the dataset
+   * @param numShards to divide the species into
+   */
+  ShardedCrawl(final ScrapeMaster master, final File imageRoot, final int numShards) {
+    this.master = master;
+    this.imageRoot = imageRoot;
+    this.numShards = numShards;
+    this.dir = new File(imageRoot.getPath() + "\\crawl\\" + CRAWL);
+    this.leases = new FileLeases(dir, NODE);
+  }
+
+  /**
+   * Crawl shards until all are done, and merge them if no other node does.
+   * @param speciesWithSynonyms to divide into shards, if no other node has yet
+   * @return outcome of each species this node scraped
+   * @throws IOException if the crawl directory or a shard's state can't be read or written
+   */
+  ScrapeResult run(final Map<String, List<String>> speciesWithSynonyms) throws IOException {
+    final Date start = new Date();
+    System.out.println("Node " + NODE + " joining crawl " + CRAWL + " in " + dir.getPath());
+    try {
+      runOnce(PLAN, () -> plan(speciesWithSynonyms));
+      final Map<String, Map<String, List<String>>> shards = readPlan();
+
+      // take the largest shard left, until there is none
+      final List<SpeciesOutcome> outcomes = new ArrayList<>();
+      boolean allDone = false;
+      while (!allDone) {
+        allDone = true;
+        FileLeases.Lease lease = null;
+        for (String shard : shards.keySet()) {
+          if (leases.isDone(shard)) continue;
+          allDone = false;
+          lease = leases.tryAcquire(shard);
+          if (lease != null) break;
+        }
+        if (lease != null) outcomes.addAll(crawlShard(lease, shards.get(lease.task)));
+        else if (!allDone) pause();
+      }
+
+      final boolean merged = runOnce(MERGE, () -> merge(shards));
+      if (!merged) System.out.println("Node " + NODE + " done, shards were merged by another node");
+      return new ScrapeResult(start, new Date(), outcomes, merged);
+    } finally {
+      leases.close();
+    }
+  }
+
+  /**
+   * Do a task under its lease, unless another node has done it, waiting for
+   *   any node that's doing it.
+   * @param task to do
+   * @param work of the task
+   * @return true if this node did the task
+   * @throws IOException if the work failed
+   */
+  private boolean runOnce(final String task, final Task work) throws IOException {
+    while (!leases.isDone(task)) {
+      final FileLeases.Lease lease = leases.tryAcquire(task);
+      if (lease == null) {
+        pause();
+        continue;
+      }
+      try {
+        return lease.done(work.run());
+      } catch (IOException | RuntimeException e) {
+        lease.release();
+        throw e;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Crawl a shard under its lease.
+   * @param lease of the shard
+   * @param species of the shard
+   * @return outcome of each species of the shard
+   * @throws IOException if the shard's state can't be read or written
+   */
+  private Collection<SpeciesOutcome> crawlShard(final FileLeases.Lease lease, final Map<String, List<String>> species)
+    throws IOException {
+    try {
+      final File state = stateDir(lease.task, lease.epoch);
+      seed(state, lease);
+      final ScrapeResult result = master.crawl(species, state, lease);
+      final String record = NODE + "\t" + lease.epoch + "\t" + result.getNumImages() + "\t" + result.getNumBytes()
+        + "\t" + result.getNumIncomplete();
+      if (!lease.done(record)) System.err.println("Lost " + lease.task + " before it was done, leaving it to the node that took it over");
+      return result.getOutcomes().values();
+    } catch (IOException | RuntimeException e) {
+      lease.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Set up a shard's state: a copy of the state of the last node that had its
+   *   lease, to resume where that one stopped, or else of the dataset's.
+   * @param state directory of the shard for this lease
+   * @param lease of the shard
+   * @throws IOException if copying fails
+   */
+  private void seed(final File state, final FileLeases.Lease lease) throws IOException {
+    File from = null;
+    for (int epoch = lease.epoch - 1; epoch > 0 && from == null; epoch--) {
+      if (stateDir(lease.task, epoch).isDirectory()) from = stateDir(lease.task, epoch);
+    }
+    if (!state.mkdirs() && !state.isDirectory()) throw new IOException("Can't create shard directory " + state.getPath());
+    if (from != null) {
+      copy(from, state, MANIFEST, INDEX, CONFLICTS, COSTS, JOURNAL);
+      copy(from, state, ImageTags.fileNames(TAGS).toArray(new String[0]));
+    } else {
+      copy(imageRoot, state, MANIFEST, INDEX, COSTS);
+    }
+  }
+
+  /**
+   * Divide the species into shards: the most costly first, each to the
+   *   shard with the least cost so far, and write them to the plan.
+   * @param speciesWithSynonyms to divide
+   * @return record of the plan
+   * @throws IOException if the plan can't be written
+   */
+  private String plan(final Map<String, List<String>> speciesWithSynonyms) throws IOException {
+
+    // every shard starts from a copy of the dataset's manifest and index, so have them ready
+    final String root = imageRoot.getPath();
+    new MediaManifest(new File(root + "\\" + MANIFEST), new File(root + "\\all"), new File(root + "\\new")).close();
+    new ImageIndex(new File(root + "\\" + INDEX), new File(root + "\\" + CONFLICTS), new File(root + "\\all"), new File(root + "\\new")).close();
+
+    final CrawlCosts costs = new CrawlCosts(new File(root + "\\" + COSTS));
+    final Map<String, Integer> cost = new HashMap<>();
+    for (Map.Entry<String, List<String>> species : speciesWithSynonyms.entrySet()) {
+      int pages = Math.max(1, costs.pages(species.getKey()));
+      for (String synonym : species.getValue()) pages += Math.max(1, costs.pages(synonym));
+      cost.put(species.getKey(), pages);
+    }
+    final List<String> labels = new ArrayList<>(new TreeMap<>(speciesWithSynonyms).keySet());
+    labels.sort(Comparator.comparing(cost::get, Comparator.reverseOrder()));
+
+    final long[] load = new long[numShards];
+    final List<List<String>> shards = new ArrayList<>();
+    for (int shard = 0; shard < numShards; shard++) shards.add(new ArrayList<>());
+    for (String label : labels) {
+      int lightest = 0;
+      for (int shard = 1; shard < numShards; shard++) if (load[shard] < load[lightest]) lightest = shard;
+      shards.get(lightest).add(label);
+      load[lightest] += cost.get(label);
+    }
+
+    // largest shards first, which is the order nodes take them in
+    final List<Integer> order = new ArrayList<>();
+    for (int shard = 0; shard < numShards; shard++) order.add(shard);
+    order.sort(Comparator.comparing((Integer shard) -> load[shard], Comparator.reverseOrder()));
+    final File tmp = new File(planFile().getPath() + ".tmp");
+    try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+      for (int shard : order) {
+        for (String label : shards.get(shard)) {
+          out.write("shard-" + shard + "\t" + label);
+          for (String synonym : speciesWithSynonyms.get(label)) out.write("\t" + synonym);
+          out.write("\n");
+        }
+      }
+    }
+    Files.move(tmp.toPath(), planFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    long total = 0;
+    for (long shardLoad : load) total += shardLoad;
+    System.out.println("Planned " + numShards + " shards of " + labels.size() + " species, about "
+      + total / numShards + " listing pages each");
+    return NODE + "\t" + numShards + "\t" + labels.size();
+  }
+
+  /**
+   * @return species of each shard, largest shard first
+   * @throws IOException if the plan can't be read
+   */
+  private Map<String, Map<String, List<String>>> readPlan() throws IOException {
+    final Map<String, Map<String, List<String>>> shards = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(planFile().toPath(), StandardCharsets.UTF_8)) {
+      final String[] fields = line.split("\t");
+      if (fields.length < 2) continue;
+      shards.computeIfAbsent(fields[0], shard -> new TreeMap<>())
+        .put(fields[1], new ArrayList<>(Arrays.asList(fields).subList(2, fields.length)));
+    }
+    return shards;
+  }
+
+  /**
+   * Merge the state of every shard into the dataset's.
+   * @param shards of the crawl
+   * @return record of the merge
+   * @throws IOException if a shard's state can't be read, or the dataset's written
+   */
+  private String merge(final Map<String, Map<String, List<String>>> shards) throws IOException {
+    final String root = imageRoot.getPath();
+    final MediaManifest manifest = new MediaManifest(new File(root + "\\" + MANIFEST), new File(root + "\\all"), new File(root + "\\new"));
+    final ImageIndex index = new ImageIndex(new File(root + "\\" + INDEX), new File(root + "\\" + CONFLICTS),
+      new File(root + "\\all"), new File(root + "\\new"));
+    final ImageTags imageTags = new ImageTags(new File(root + "\\" + TAGS));
+    final CrawlCosts costs = new CrawlCosts(new File(root + "\\" + COSTS));
+    final int nearFrom = index.size();
+
+    int numImages = 0;
+    long numBytes = 0;
+    int numIncomplete = 0;
+    int numDuplicates = 0;
+    try {
+      for (Map.Entry<String, Map<String, List<String>>> shard : shards.entrySet()) {
+        final String[] record = leases.doneRecord(shard.getKey()).split("\t");
+        final String state = stateDir(shard.getKey(), Integer.parseInt(record[1])).getPath();
+        numImages += Integer.parseInt(record[2]);
+        numBytes += Long.parseLong(record[3]);
+        numIncomplete += Integer.parseInt(record[4]);
+
+        manifest.addAll(new File(state + "\\" + MANIFEST));
+        imageTags.addAll(new File(state + "\\" + TAGS));
+
+        // an image tagged with species of different shards may have been downloaded by both
+        for (Map.Entry<String, ImageIndex.Entry> duplicate : index.merge(new File(state + "\\" + INDEX), nearFrom).entrySet()) {
+          if (removeDuplicate(new File(duplicate.getKey()), new File(duplicate.getValue().path))) numDuplicates++;
+        }
+
+        final File conflicts = new File(state + "\\" + CONFLICTS);
+        if (conflicts.exists()) {
+          Files.write(new File(root + "\\" + CONFLICTS).toPath(), Files.readAllBytes(conflicts.toPath()),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        final List<String> names = new ArrayList<>();
+        for (Map.Entry<String, List<String>> species : shard.getValue().entrySet()) {
+          names.add(species.getKey());
+          names.addAll(species.getValue());
+        }
+        costs.include(new CrawlCosts(new File(state + "\\" + COSTS)), names);
+      }
+    } finally {
+      manifest.close();
+      index.close();
+      imageTags.close();
+    }
+    costs.save();
+    deleteShardStates();
+
+    System.out.println("Merged " + shards.size() + " shards of crawl " + CRAWL + ": " + numImages + " new images ("
+      + String.format("%,d", numBytes) + " bytes, " + numIncomplete + " species with failures, "
+      + numDuplicates + " downloaded by more than one shard)");
+    return NODE + "\t" + numImages + "\t" + numBytes + "\t" + numIncomplete + "\t" + numDuplicates;
+  }
+
+  /**
+   * Skip or link an image some other shard downloaded as well, like a single crawl would have.
+   * @param duplicate to remove
+   * @param original to keep
+   * @return true if the duplicate was removed
+   * @throws IOException if removing or linking fails
+   */
+  private static boolean removeDuplicate(final File duplicate, final File original) throws IOException {
+    if (!Files.deleteIfExists(duplicate.toPath())) return false;
+    if (ScrapeWorker.LINK_DUPLICATES && original.exists()) Files.createLink(duplicate.toPath(), original.toPath());
+    return true;
+  }
+
+  /**
+   * Delete the state of every shard (shard-N.[epoch]), once merged.
+   */
+  private void deleteShardStates() {
+    for (File state : Objects.requireNonNull(dir.listFiles((d, name) -> name.matches("shard-\\d+\\.\\d+.*")))) {
+      try (Stream<Path> files = Files.walk(state.toPath())) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+      } catch (IOException e) {
+        System.err.println("Error deleting shard state " + state.getPath() + ": " + e);
+      }
+    }
+  }
+
+  private File stateDir(final String shard, final int epoch) {
+    return new File(dir, shard + "." + epoch);
+  }
+
+  private File planFile() {
+    return new File(dir, "plan.tsv");
+  }
+
+  /**
+   * Copy those of some files that exist from one directory to another.
+   */
+  private static void copy(final File from, final File to, final String... names) throws IOException {
+    for (String name : names) {
+      final File source = new File(from.getPath() + "\\" + name);
+      if (source.exists()) {
+        Files.copy(source.toPath(), new File(to.getPath() + "\\" + name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+
+  private static void pause() throws IOException {
+    try {
+      TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for other nodes");
+    }
+  }
+
+  private static String today() {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date());
+  }
+}
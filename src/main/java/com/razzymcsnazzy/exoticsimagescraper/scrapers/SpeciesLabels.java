@@ -0,0 +1,13 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+/**
+ * Resolves the Arachnoboards tags of an item to the species to file it under.
+ */
+public interface SpeciesLabels {
+
+  /**
+   * @param tag of an accepted name or synonym, i.e. brachypelma-smithi
+   * @return the accepted name the tag's species is labelled with, or null if the tag names no known species
+   */
+  String labelOfTag(String tag);
+}
@@ -0,0 +1,68 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What scraping a single species came to.
+ */
+public class SpeciesOutcome {
+
+  /**
+   * Label of the species (currently accepted scientific name).
+   */
+  private final String speciesLabel;
+
+  /**
+   * Number of new images scraped.
+   */
+  private final int numImages;
+
+  /**
+   * Number of images that had been scraped previously.
+   */
+  private final int numExisting;
+
+  /**
+   * Number of bytes downloaded.
+   */
+  private final long numBytes;
+
+  /**
+   * Number of gallery pages or listing walks that failed.
+   */
+  private final int numFailed;
+
+  /**
+   * How many images have been scraped per name (i.e. for synonyms).
+   */
+  private final Map<String, Integer> imagesPerName;
+
+  SpeciesOutcome(final String speciesLabel, final int numImages, final int numExisting, final long numBytes,
+                 final int numFailed, final Map<String, Integer> imagesPerName) {
+    this.speciesLabel = speciesLabel;
+    this.numImages = numImages;
+    this.numExisting = numExisting;
+    this.numBytes = numBytes;
+    this.numFailed = numFailed;
+    this.imagesPerName = Collections.unmodifiableMap(new TreeMap<>(imagesPerName));
+  }
+
+  public String getSpeciesLabel() { return speciesLabel; }
+
+  public int getNumImages() { return numImages; }
+
+  public int getNumExisting() { return numExisting; }
+
+  public long getNumBytes() { return numBytes; }
+
+  public int getNumFailed() { return numFailed; }
+
+  public Map<String, Integer> getImagesPerName() { return imagesPerName; }
+
+  /**
+   * @return true if every part of the species was scraped without errors
+   */
+  public boolean isComplete() { return numFailed == 0; }
+}
@@ -0,0 +1,197 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rules to pick images by their gallery tags, as kept in ImageTags, so
+ *   what's in the dataset can be changed without crawling again.
+ *
+ * One rule per line, e.g.
+ *   exclude sexing molt* exuviae
+ *   exclude enclosure+setup
+ *   include ventral+female
+ *   default include
+ * A rule matches an image that has any of its terms. A term is a tag, a tag
+ *   prefix ending in *, or several of them joined with +, which must all be
+ *   there. The first rule that matches an image decides; images no rule
+ *   matches are included, unless there's a "default exclude". Empty lines
+ *   and lines starting with # are skipped.
+ *
+ * Rules are compiled once per store: every pattern is looked up in the
+ *   store's strings, so checking an image is a few bit lookups per tag.
+ *   Images the store knows nothing about (i.e. scraped before it existed)
+ *   are always included.
+ */
+public class TagFilter {
+
+  /**
+   * A rule as written: whether it includes, and its terms, each a list of patterns.
+   */
+  private static final class Rule {
+    final String text;
+    final boolean include;
+    final List<List<String>> terms;
+
+    Rule(final String text, final boolean include, final List<List<String>> terms) {
+      this.text = text;
+      this.include = include;
+      this.terms = terms;
+    }
+  }
+
+  private final List<Rule> rules;
+  private final boolean includeByDefault;
+
+  private TagFilter(final List<Rule> rules, final boolean includeByDefault) {
+    this.rules = rules;
+    this.includeByDefault = includeByDefault;
+  }
+
+  /**
+   * Read rules from a file.
+   * @param rulesFile to read, one rule per line
+   * @return the rules, or null if there is no such file
+   * @throws IOException if the file can't be read
+   * @throws IllegalArgumentException if a rule can't be made sense of
+   */
+  public static TagFilter load(final File rulesFile) throws IOException {
+    if (!rulesFile.exists()) return null;
+    return parse(Files.readAllLines(rulesFile.toPath(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Parse rules.
+   * @param lines one rule per line
+   * @return the rules
+   * @throws IllegalArgumentException if a rule can't be made sense of
+   */
+  public static TagFilter parse(final List<String> lines) {
+    final List<Rule> rules = new ArrayList<>();
+    boolean includeByDefault = true;
+    for (String line : lines) {
+      final String rule = line.trim();
+      if (rule.isEmpty() || rule.startsWith("#")) continue;
+      final String[] words = rule.split("\\s+");
+      final String action = words[0].toLowerCase();
+      if (action.equals("default") && words.length == 2 && (words[1].equals("include") || words[1].equals("exclude"))) {
+        includeByDefault = words[1].equals("include");
+        continue;
+      }
+      if ((!action.equals("include") && !action.equals("exclude")) || words.length < 2) {
+        throw new IllegalArgumentException("Not a rule: " + rule);
+      }
+      final List<List<String>> terms = new ArrayList<>();
+      for (int i = 1; i < words.length; i++) {
+        final List<String> patterns = new ArrayList<>();
+        for (String pattern : words[i].toLowerCase().split("\\+")) if (!pattern.isEmpty()) patterns.add(pattern);
+        terms.add(patterns);
+      }
+      rules.add(new Rule(rule, action.equals("include"), terms));
+    }
+    return new TagFilter(rules, includeByDefault);
+  }
+
+  /**
+   * Rules with their patterns looked up in a store's strings.
+   */
+  private final class Compiled {
+
+    /**
+     * Per rule and term, one set of string numbers per pattern.
+     */
+    final BitSet[][][] terms;
+
+    Compiled(final String[] strings) {
+      final Map<String, BitSet> byPattern = new HashMap<>();
+      terms = new BitSet[rules.size()][][];
+      for (int rule = 0; rule < rules.size(); rule++) {
+        final List<List<String>> ruleTerms = rules.get(rule).terms;
+        terms[rule] = new BitSet[ruleTerms.size()][];
+        for (int term = 0; term < ruleTerms.size(); term++) {
+          final List<String> patterns = ruleTerms.get(term);
+          terms[rule][term] = new BitSet[patterns.size()];
+          for (int pattern = 0; pattern < patterns.size(); pattern++) {
+            terms[rule][term][pattern] = byPattern.computeIfAbsent(patterns.get(pattern), p -> matching(p, strings));
+          }
+        }
+      }
+    }
+
+    /**
+     * @return index of the first rule matching an image, or -1 if none does
+     */
+    int firstMatch(final ImageTags.Table table, final int row) {
+      for (int rule = 0; rule < terms.length; rule++) {
+        for (BitSet[] term : terms[rule]) {
+          if (hasAll(table, row, term)) return rule;
+        }
+      }
+      return -1;
+    }
+
+    private boolean hasAll(final ImageTags.Table table, final int row, final BitSet[] patterns) {
+      for (BitSet pattern : patterns) {
+        boolean has = false;
+        for (int i = table.tagStart(row); i < table.tagEnds[row] && !has; i++) has = pattern.get(table.tags[i]);
+        if (!has) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return numbers of the strings a pattern matches
+   */
+  private static BitSet matching(final String pattern, final String[] strings) {
+    final BitSet matches = new BitSet(strings.length);
+    final boolean prefix = pattern.endsWith("*");
+    final String stem = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+    for (int i = 0; i < strings.length; i++) {
+      if (prefix ? strings[i].startsWith(stem) : strings[i].equals(stem)) matches.set(i);
+    }
+    return matches;
+  }
+
+  /**
+   * Find the images the rules leave out, by the latest of their rows in a store.
+   * @param store of image tags (see ImageTags)
+   * @return file names of the images left out
+   * @throws IOException if the store can't be read
+   */
+  public Set<String> excludedFiles(final File store) throws IOException {
+    final long start = System.nanoTime();
+    final ImageTags.Table table = ImageTags.read(store, false);
+    if (table.numRows == 0) return Collections.emptySet();
+    final Compiled compiled = new Compiled(table.strings);
+
+    // the latest row of an image decides
+    final Map<Integer, Integer> decidingRule = new HashMap<>();
+    for (int row = 0; row < table.numRows; row++) decidingRule.put(table.file[row], compiled.firstMatch(table, row));
+
+    final Set<String> excluded = new HashSet<>();
+    final int[] numPerRule = new int[rules.size()];
+    for (Map.Entry<Integer, Integer> image : decidingRule.entrySet()) {
+      final int rule = image.getValue();
+      if (rule >= 0) numPerRule[rule]++;
+      if (rule < 0 ? !includeByDefault : !rules.get(rule).include) excluded.add(table.strings[image.getKey()]);
+    }
+
+    System.out.println("Tag rules leave out " + excluded.size() + " of " + decidingRule.size() + " tagged images ("
+      + (System.nanoTime() - start) / 1_000_000 + " ms)");
+    for (int rule = 0; rule < rules.size(); rule++) {
+      System.out.println("\t* " + rules.get(rule).text + ": " + numPerRule[rule]);
+    }
+    return excluded;
+  }
+}
@@ -16,10 +16,10 @@ public class TarCanScrapeWorker extends ScrapeWorker {
    * Scrape all images off TarCan gallery for a species.
    * @param speciesLabel to scrape (scientific name)
    * @param speciesNames to scrape (scientific name and synonyms)
-   * @param speciesToShutdownOn to shut down scraper on
+   * @param context shared by all workers of the crawl
    */
-  public TarCanScrapeWorker(final String speciesLabel, final List<String> speciesNames, final String speciesToShutdownOn) {
-    super("https://www.tarantulacanada.ca/", speciesLabel, speciesNames, speciesToShutdownOn);
+  TarCanScrapeWorker(final String speciesLabel, final List<String> speciesNames, final CrawlContext context) {
+    super("https://www.tarantulacanada.ca/", speciesLabel, speciesNames, context);
   }
 
   /**
@@ -27,6 +27,6 @@ public class TarCanScrapeWorker extends ScrapeWorker {
    */
   @Override
   public void run() {
-
+    finish();
   }
 }
@@ -0,0 +1,80 @@
+package com.razzymcsnazzy.exoticsimagescraper.scrapers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors that start a virtual thread per task, for running the crawl
+ *   with -Dscraper.threads=virtual.
+ *
+ * The crawl spends nearly all of its time blocked on the network, so with
+ *   virtual threads every species and every gallery item can simply get a
+ *   thread of its own, and how many requests are really in flight is left to
+ *   each host's HostThrottle. The project still builds for Java 8, so virtual
+ *   threads are looked up reflectively; on JVMs without them (before 21) the
+ *   crawl falls back to the fixed size pools.
+ *
+ * Hosts then are the only limit, so raise their max concurrency to match
+ *   (i.e. -Dscraper.host.maxConcurrency=1000).
+ */
+final class VirtualThreads {
+
+  /**
+   * Whether virtual threads were asked for (-Dscraper.threads=virtual).
+   */
+  static final boolean REQUESTED = "virtual".equals(System.getProperty("scraper.threads", "platform"));
+
+  /**
+   * Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory(),
+   *   or null if this JVM has no virtual threads.
+   */
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    Method newThreadPerTaskExecutor = null;
+    try {
+      final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+    } catch (ReflectiveOperationException e) {
+      if (REQUESTED) System.err.println("Virtual threads need Java 21 or later, using platform threads");
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  private VirtualThreads() { }
+
+  /**
+   * @return whether the crawl runs on virtual threads: they were asked for and this JVM has them
+   */
+  static boolean isEnabled() { return REQUESTED && OF_VIRTUAL != null; }
+
+  /**
+   * Make an executor that starts a new virtual thread for each task.
+   * @param namePrefix of the threads, followed by a counter
+   * @return the executor
+   * @throws IllegalStateException if this JVM has no virtual threads
+   */
+  static ExecutorService newPerTaskExecutor(final String namePrefix) {
+    if (OF_VIRTUAL == null) throw new IllegalStateException("No virtual threads on this JVM");
+    try {
+      final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, FACTORY.invoke(builder));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not make virtual thread executor", e);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.razzymcsnazzy.exoticsimagescraper.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Transport against a ReplayServer whose site moved, so every request is answered with a 301 first.
+ */
+public class TransportTest {
+
+  private ReplayServer server;
+  private String root;
+
+  @Before
+  public void startServer() throws IOException {
+    server = new ReplayServer(0, 4, null, 1, 2_000);
+    server.start();
+    root = "http://localhost:" + server.getPort() + "/";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void followsRedirectToPage() throws IOException {
+    final String path = "arachnoboards.com/media/synthetic.7/";
+    try (Transport.Response moved = Transport.get(root + ReplayServer.MOVED + path, Collections.emptyMap(), true);
+         Transport.Response direct = Transport.get(root + path, Collections.emptyMap(), true)) {
+      assertEquals(200, moved.statusCode());
+      assertEquals(root + path, moved.url());
+      assertArrayEquals(direct.bodyAsBytes(), moved.bodyAsBytes());
+    }
+  }
+
+  @Test
+  public void followsRedirectToImage() throws IOException {
+    final String path = "arachnoboards.com/media/synthetic.7/full";
+    try (Transport.Response image = Transport.get(root + ReplayServer.MOVED + path,
+      Collections.singletonMap("Range", "bytes=0-"), false)) {
+      assertEquals(200, image.statusCode());
+      assertEquals("image/jpeg", image.contentType());
+      assertTrue(image.bodyAsBytes().length > 0);
+    }
+  }
+
+  @Test
+  public void givesUpOnEndlessRedirects() {
+    final StringBuilder url = new StringBuilder(root);
+    for (int hop = 0; hop <= 10; hop++) url.append(ReplayServer.MOVED);
+    url.append("arachnoboards.com/media/synthetic.7/");
+    try (Transport.Response response = Transport.get(url.toString(), Collections.emptyMap(), true)) {
+      fail("Got " + response.statusCode() + " after more redirects than allowed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("redirects"));
+    }
+  }
+}